@@ -0,0 +1,322 @@
+package org.esdc.hapi;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.hapiserver.TimeUtil;
+
+/**
+ * Watches the sequence of requests for each dataset and warms the CDF file cache when
+ * a client is paging through time.  Clients often request one day, then the next day,
+ * then the next, and each request would otherwise wait for the SOAR download.  The record
+ * source does not know which client made a request, so requests are grouped by the dataset
+ * id and the duration of the request, which identifies a sweep well in practice.  When a
+ * request follows on from the previous request of the group, either forward or backward
+ * in time, the files of the next interval in the same direction are downloaded in the
+ * background.
+ *
+ * Warming is limited by a byte budget per hour (system property esdc.warm.maxBytesPerHour,
+ * default 2000000000, zero disables warming) and by the number of bytes which have been
+ * warmed but not yet used (esdc.warm.maxPendingBytes, default 1000000000).  Warmed files
+ * which are not used within an hour are counted as wasted.
+ * @author jbf
+ */
+public class AccessPredictor {
+
+    private static final Logger logger= Logger.getLogger("hapi.esdc");
+
+    /**
+     * the number of request groups remembered.
+     */
+    private static final int MAX_GROUPS= 1000;
+
+    /**
+     * warmed files not used within this time are counted as wasted.
+     */
+    private static final long WARM_EXPIRE_MILLIS= 3600000;
+
+    private static final long HOUR_MILLIS= 3600000;
+
+    /**
+     * requests are adjacent when they are within this fraction of the duration.
+     */
+    private static final double ADJACENT_TOLERANCE= 0.01;
+
+    /**
+     * the record source provides the listing and download for the predicted interval.
+     */
+    interface Warmer {
+        /**
+         * list the granules of the interval.
+         * @param start seven-component start time
+         * @param stop seven-component stop time
+         * @return the granules
+         * @throws IOException
+         */
+        List<GranuleDescriptor> list( int[] start, int[] stop ) throws IOException;
+
+        /**
+         * return true if the granule can be read without downloading it.
+         * @param g the granule
+         * @return true if the granule is already local.
+         */
+        boolean isLocal( GranuleDescriptor g );
+
+        /**
+         * download the granule into the cache.
+         * @param g the granule
+         * @return the file, or null if nothing was downloaded, because the granule was already
+         *    local or is read partially by requests.
+         * @throws IOException
+         */
+        File load( GranuleDescriptor g ) throws IOException;
+    }
+
+    private static class LastRequest {
+        long start;
+        long stop;
+        private LastRequest( long start, long stop ) {
+            this.start= start;
+            this.stop= stop;
+        }
+    }
+
+    private static class Warmed {
+        long bytes;
+        long timeMillis;
+        private Warmed( long bytes, long timeMillis ) {
+            this.bytes= bytes;
+            this.timeMillis= timeMillis;
+        }
+    }
+
+    private static AccessPredictor instance;
+
+    /**
+     * return the predictor used by all the record sources in this process.
+     * @return the predictor
+     */
+    public static synchronized AccessPredictor getInstance() {
+        if ( instance==null ) {
+            long maxBytesPerHour= Long.parseLong( System.getProperty("esdc.warm.maxBytesPerHour","2000000000") );
+            long maxPendingBytes= Long.parseLong( System.getProperty("esdc.warm.maxPendingBytes","1000000000") );
+            instance= new AccessPredictor( maxBytesPerHour, maxPendingBytes );
+        }
+        return instance;
+    }
+
+    private final long maxBytesPerHour;
+    private final long maxPendingBytes;
+
+    private final Map<String,LastRequest> lastRequests= new LinkedHashMap<String,LastRequest>(16,0.75f,true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LastRequest> eldest) {
+            return size()>MAX_GROUPS;
+        }
+    };
+
+    /**
+     * files warmed and not yet used, keyed by filename.
+     */
+    private final Map<String,Warmed> warmed= new LinkedHashMap<>();
+
+    private long pendingBytes;
+
+    private long hourStartMillis;
+    private long hourBytes;
+
+    private long predictionCount;
+    private long warmedCount;
+    private long warmedBytes;
+    private long warmHitCount;
+    private long wastedCount;
+    private long wastedBytes;
+    private long skippedCount;
+
+    private ExecutorService executor;
+
+    AccessPredictor( long maxBytesPerHour, long maxPendingBytes ) {
+        this.maxBytesPerHour= maxBytesPerHour;
+        this.maxPendingBytes= maxPendingBytes;
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if ( executor==null ) {
+            executor= Executors.newSingleThreadExecutor( (Runnable r) -> {
+                Thread t= new Thread( r, "esdc-warm" );
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * record the request, and when it continues a sweep through time, warm the cache with
+     * the files of the next interval.
+     * @param id the dataset id
+     * @param start seven-component start time
+     * @param stop seven-component stop time
+     * @param warmer the record source's listing and download
+     */
+    void observe( String id, int[] start, int[] stop, Warmer warmer ) {
+        if ( maxBytesPerHour<=0 ) return;
+        long s= Util.toNanosecondsSince1970(start);
+        long e= Util.toNanosecondsSince1970(stop);
+        long duration= e-s;
+        if ( duration<=0 ) return;
+        long tolerance= (long)( duration * ADJACENT_TOLERANCE );
+        String key= id + "/" + duration;
+
+        long[] next= null;
+        synchronized (this) {
+            expireWarmed( System.currentTimeMillis() );
+            LastRequest last= lastRequests.get(key);
+            if ( last!=null ) {
+                if ( Math.abs( s-last.stop )<=tolerance ) {
+                    next= new long[] { e, e+duration };
+                } else if ( Math.abs( e-last.start )<=tolerance ) {
+                    next= new long[] { s-duration, s };
+                }
+            }
+            lastRequests.put( key, new LastRequest( s, e ) );
+            if ( next!=null ) {
+                predictionCount++;
+            }
+        }
+
+        if ( next!=null ) {
+            final int[] nextStart= Util.fromNanosecondsSince1970(next[0]);
+            final int[] nextStop= Util.fromNanosecondsSince1970(next[1]);
+            logger.log(Level.FINE, "sweep detected for {0}, warming {1}/{2}",
+                new Object[] { key, TimeUtil.formatIso8601Time(nextStart), TimeUtil.formatIso8601Time(nextStop) } );
+            getExecutor().submit( () -> warm( nextStart, nextStop, warmer ) );
+        }
+    }
+
+    private void warm( int[] start, int[] stop, Warmer warmer ) {
+        try {
+            for ( GranuleDescriptor g: warmer.list( start, stop ) ) {
+                if ( warmer.isLocal(g) ) continue;
+                synchronized (this) {
+                    long now= System.currentTimeMillis();
+                    if ( now-hourStartMillis > HOUR_MILLIS ) {
+                        hourStartMillis= now;
+                        hourBytes= 0;
+                    }
+                    if ( warmed.containsKey(g.filename) ) {
+                        continue; // already warmed and not yet used, so its expiry is not moved.
+                    }
+                    if ( hourBytes>=maxBytesPerHour || pendingBytes>=maxPendingBytes ) {
+                        skippedCount++;
+                        logger.log(Level.FINE, "warming budget is used, skipping {0}", g);
+                        continue;
+                    }
+                }
+                File f= warmer.load(g);
+                if ( f==null ) {
+                    continue;
+                }
+                long bytes= f.length();
+                synchronized (this) {
+                    hourBytes+= bytes;
+                    warmedCount++;
+                    warmedBytes+= bytes;
+                    if ( !warmed.containsKey(g.filename) ) {
+                        pendingBytes+= bytes;
+                        warmed.put( g.filename, new Warmed( bytes, System.currentTimeMillis() ) );
+                    }
+                }
+            }
+        } catch ( IOException | RuntimeException ex ) {
+            logger.log(Level.INFO, "unable to warm cache", ex);
+        }
+    }
+
+    /**
+     * record that the file was read by a request, so that a warmed file is counted as a hit.
+     * @param filename the filename
+     */
+    synchronized void recordUse( String filename ) {
+        Warmed w= warmed.remove(filename);
+        if ( w!=null ) {
+            warmHitCount++;
+            pendingBytes-= w.bytes;
+        }
+    }
+
+    private void expireWarmed( long now ) {
+        for ( Iterator<Warmed> iter= warmed.values().iterator(); iter.hasNext(); ) {
+            Warmed w= iter.next();
+            if ( now-w.timeMillis > WARM_EXPIRE_MILLIS ) {
+                iter.remove();
+                pendingBytes-= w.bytes;
+                wastedCount++;
+                wastedBytes+= w.bytes;
+            } else {
+                break; // entries are in the order they were warmed.
+            }
+        }
+    }
+
+    /**
+     * return the number of requests which continued a sweep.
+     * @return the number of predictions
+     */
+    public synchronized long getPredictionCount() {
+        return predictionCount;
+    }
+
+    /**
+     * return the number of files downloaded in anticipation of a request.
+     * @return the number of files warmed
+     */
+    public synchronized long getWarmedCount() {
+        return warmedCount;
+    }
+
+    /**
+     * return the number of warmed files which were then read by a request.
+     * @return the number of warm hits
+     */
+    public synchronized long getWarmHitCount() {
+        return warmHitCount;
+    }
+
+    /**
+     * return the number of warmed files which were not read within an hour.
+     * @return the number of wasted prefetches
+     */
+    public synchronized long getWastedCount() {
+        return wastedCount;
+    }
+
+    /**
+     * return the number of bytes of the warmed files which were not read within an hour.
+     * @return the number of bytes wasted
+     */
+    public synchronized long getWastedBytes() {
+        return wastedBytes;
+    }
+
+    /**
+     * return the number of files not warmed because the budget was used.
+     * @return the number of files skipped
+     */
+    public synchronized long getSkippedCount() {
+        return skippedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format( "AccessPredictor: predictions=%d warmed=%d (%d bytes) warmHits=%d wasted=%d (%d bytes) skipped=%d",
+            predictionCount, warmedCount, warmedBytes, warmHitCount, wastedCount, wastedBytes, skippedCount );
+    }
+}
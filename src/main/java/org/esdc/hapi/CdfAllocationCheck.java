@@ -0,0 +1,61 @@
+package org.esdc.hapi;
+
+import gov.nasa.gsfc.spdf.cdfj.CDFException;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import org.hapiserver.HapiRecord;
+
+/**
+ * Reports the bytes allocated for each record by CdfFileRecordIterator, with and without
+ * cursor mode.  This is a tool for development, and it needs a JVM which counts the bytes
+ * allocated by each thread, like HotSpot.
+ * @author jbf
+ */
+class CdfAllocationCheck {
+
+    /**
+     * read the records of the first block of a file, and report the bytes allocated for
+     * each record, with and without cursor mode.
+     * For example: java org.esdc.hapi.CdfAllocationCheck file.cdf Epoch B_RTN
+     * @param args the CDF file and the parameters, with the time tag first.
+     * @throws CDFException.ReaderError
+     */
+    public static void main( String[] args ) throws CDFException.ReaderError {
+        ThreadMXBean bean= ManagementFactory.getThreadMXBean();
+        if ( !( bean instanceof com.sun.management.ThreadMXBean ) ) {
+            System.out.println( "this JVM does not count the bytes allocated by each thread." );
+            return;
+        }
+        com.sun.management.ThreadMXBean allocations= (com.sun.management.ThreadMXBean)bean;
+        String[] params= Arrays.copyOfRange( args, 1, args.length );
+        long tid= Thread.currentThread().getId();
+        for ( int pass=0; pass<4; pass++ ) {
+            boolean cursorMode= pass%2==1;
+            CdfFileRecordIterator iter= new CdfFileRecordIterator( null, null, null, params, new File(args[0]) );
+            iter.setCursorMode(cursorMode);
+            iter.peekTime(); // read the first block before counting.
+            int blockEnd= iter.getBlockEnd();
+            long bytes0= allocations.getThreadAllocatedBytes(tid);
+            int n= 0;
+            double sum= 0;
+            while ( iter.hasNext() && iter.index<blockEnd ) {
+                HapiRecord rec= iter.next();
+                for ( int i=1; i<params.length; i++ ) {
+                    double[] array= rec.getDoubleArray(i);
+                    if ( array!=null ) {
+                        sum+= array[0];
+                    } else {
+                        sum+= rec.getDouble(i);
+                    }
+                }
+                n++;
+            }
+            long bytes= allocations.getThreadAllocatedBytes(tid) - bytes0;
+            iter.close();
+            System.out.println( String.format( "cursorMode=%s: %d records of the first block, %.2f bytes allocated per record (%s)",
+                cursorMode, n, n==0 ? 0. : bytes/(double)n, sum ) );
+        }
+    }
+}
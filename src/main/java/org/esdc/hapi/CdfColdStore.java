@@ -0,0 +1,441 @@
+package org.esdc.hapi;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Second, compressed tier of the CDF file cache.  Files evicted from the cache of loose files
+ * are compressed with a Deflater and appended to segment files ("segment-000001.pack"), with
+ * an index ("cold.index") recording the segment, offset and length of each file.  This holds
+ * the small daily files which are rarely read in a fraction of the space and without using
+ * an inode for each.  When a file is read again it is decompressed back into the loose cache.
+ *
+ * Space is reclaimed a segment at a time: when the store is over its budget, the oldest
+ * segment is deleted along with the files it contains.  Segments left without any files, as
+ * files are promoted or removed, are deleted as well, and a segment which is mostly space
+ * left by promoted or removed files is compacted, copying its files to the current segment.
+ * Small files can be decompressed straight into memory with read, without writing them out.
+ * @author jbf
+ */
+class CdfColdStore {
+
+    private static final Logger logger= Logger.getLogger("hapi.esdc");
+
+    private static final String INDEX_NAME= "cold.index";
+
+    private static final String INDEX_HEADER= "# esdc-hapi cold store index v1: filename, segment, offset, compressedLength, length, url";
+
+    /**
+     * a new segment is started when the current one reaches this size.
+     */
+    private static final long SEGMENT_SIZE_LIMIT= 256L * 1024 * 1024;
+
+    /**
+     * a segment is compacted when less than this fraction of it holds files in the store.
+     */
+    private static final double COMPACT_FRACTION= 0.5;
+
+    private static final Pattern SEGMENT_PATTERN= Pattern.compile("segment-(\\d+)\\.pack");
+
+    private static class ColdEntry {
+        String filename;
+        int segment;
+        long offset;
+        long compressedLength;
+        long length;
+        String url;
+
+        private ColdEntry( String filename, int segment, long offset, long compressedLength, long length, String url ) {
+            this.filename= filename;
+            this.segment= segment;
+            this.offset= offset;
+            this.compressedLength= compressedLength;
+            this.length= length;
+            this.url= url;
+        }
+    }
+
+    private final File root;
+    private final long maxBytes;
+
+    /**
+     * files larger than this are not kept, since they are the big files read once.
+     */
+    private final long maxFileBytes;
+
+    private final Map<String,ColdEntry> entries= new LinkedHashMap<>();
+
+    private int currentSegment;
+
+    private long promoteCount;
+    private long demoteCount;
+    private long readCount;
+    private long compactCount;
+
+    /**
+     * create the store in the directory, reading its index.
+     * @param root the directory for the segments and index.
+     * @param maxBytes the budget for the segment files.
+     * @param maxFileBytes files larger than this are not stored.
+     */
+    CdfColdStore( File root, long maxBytes, long maxFileBytes ) {
+        this.root= root;
+        this.maxBytes= maxBytes;
+        this.maxFileBytes= maxFileBytes;
+        if ( !root.exists() ) {
+            if ( !root.mkdirs() ) {
+                logger.warning("fail to make cold store area");
+            }
+        }
+        readIndex();
+        synchronized (this) {
+            int n= entries.size();
+            evict();
+            if ( entries.size()!=n ) {
+                writeIndex();
+            }
+        }
+    }
+
+    private File getSegmentFile( int segment ) {
+        return new File( root, String.format( "segment-%06d.pack", segment ) );
+    }
+
+    /**
+     * return the numbers of the segment files in the directory, including those which no
+     * longer have files in the index.
+     * @return the segment numbers, in increasing order.
+     */
+    private List<Integer> listSegments() {
+        List<Integer> result= new ArrayList<>();
+        String[] names= root.list();
+        if ( names!=null ) {
+            for ( String name: names ) {
+                Matcher m= SEGMENT_PATTERN.matcher(name);
+                if ( m.matches() ) {
+                    result.add( Integer.parseInt( m.group(1) ) );
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * return true if the file is in the store.
+     * @param filename the filename
+     * @return true if the file is in the store.
+     */
+    synchronized boolean contains( String filename ) {
+        return entries.containsKey(filename);
+    }
+
+    /**
+     * return the source URL recorded for the file.
+     * @param filename the filename
+     * @return the URL, or null.
+     */
+    synchronized String getUrl( String filename ) {
+        ColdEntry e= entries.get(filename);
+        return e==null ? null : e.url;
+    }
+
+    /**
+     * compress the file into the store, and delete the file.  Files which are too large are
+     * just deleted.
+     * @param filename the filename used to identify the file
+     * @param file the file
+     * @param url the source of the file, or null.
+     */
+    synchronized void demote( String filename, File file, String url ) {
+        try {
+            long length= file.length();
+            if ( length>maxFileBytes ) {
+                return;
+            }
+            File segmentFile= getWritableSegment();
+            long offset= segmentFile.length();
+            try ( InputStream in= new FileInputStream(file);
+                  FileOutputStream fout= new FileOutputStream(segmentFile,true) ) {
+                DeflaterOutputStream out= new DeflaterOutputStream( fout, new Deflater(Deflater.BEST_SPEED), 65536 );
+                copy( in, out );
+                out.finish();
+                fout.flush();
+            }
+            long compressedLength= segmentFile.length()-offset;
+            entries.remove(filename);
+            entries.put( filename, new ColdEntry( filename, currentSegment, offset, compressedLength, length, url ) );
+            demoteCount++;
+            logger.log(Level.FINE, "demoted {0}, {1} bytes to {2}", new Object[] { filename, length, compressedLength } );
+            compact();
+            evict();
+            writeIndex();
+        } catch ( IOException ex ) {
+            logger.log(Level.WARNING, "unable to demote "+filename, ex);
+        } finally {
+            if ( file.exists() && !file.delete() ) {
+                logger.log(Level.WARNING, "unable to delete {0}", file);
+            }
+        }
+    }
+
+    /**
+     * return the segment which files are appended to, starting a new one when the current
+     * segment is full.
+     * @return the segment file
+     */
+    private File getWritableSegment() {
+        File segmentFile= getSegmentFile(currentSegment);
+        if ( segmentFile.length()>SEGMENT_SIZE_LIMIT ) {
+            currentSegment++;
+            segmentFile= getSegmentFile(currentSegment);
+        }
+        return segmentFile;
+    }
+
+    /**
+     * read the compressed bytes of the file from its segment.
+     * @param e the entry
+     * @return the compressed bytes
+     * @throws IOException
+     */
+    private byte[] readCompressed( ColdEntry e ) throws IOException {
+        try ( RandomAccessFile raf= new RandomAccessFile( getSegmentFile(e.segment), "r" ) ) {
+            byte[] compressed= new byte[(int)e.compressedLength];
+            raf.seek( e.offset );
+            raf.readFully( compressed );
+            return compressed;
+        }
+    }
+
+    /**
+     * decompress the file from the store into memory, leaving it in the store.
+     * @param filename the filename
+     * @param maxBytes files longer than this are not read.
+     * @return the bytes of the file, or null if the file is not in the store or is too long.
+     * @throws IOException
+     */
+    synchronized ByteBuffer read( String filename, int maxBytes ) throws IOException {
+        ColdEntry e= entries.get(filename);
+        if ( e==null || e.length>maxBytes ) {
+            return null;
+        }
+        byte[] bytes= new byte[(int)e.length];
+        int position= 0;
+        try ( InputStream in= new InflaterInputStream( new ByteArrayInputStream( readCompressed(e) ) ) ) {
+            int n;
+            while ( position<bytes.length && ( n= in.read( bytes, position, bytes.length-position ) )!=-1 ) {
+                position+= n;
+            }
+            if ( position<bytes.length || in.read()!=-1 ) {
+                throw new IOException( "decompressed length is incorrect for "+filename );
+            }
+        }
+        readCount++;
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * decompress the file from the store to the given file, removing it from the store.
+     * The file is written with the suffix ".promote" and then renamed, so that it is not
+     * confused with a download in progress, which uses ".part".
+     * @param filename the filename
+     * @param dest the file to write
+     * @return true if the file was in the store and was written.
+     * @throws IOException
+     */
+    synchronized boolean promote( String filename, File dest ) throws IOException {
+        ColdEntry e= entries.get(filename);
+        if ( e==null ) {
+            return false;
+        }
+        File tmp= new File( dest.getPath()+".promote" );
+        try ( InputStream in= new InflaterInputStream( new ByteArrayInputStream( readCompressed(e) ) );
+              OutputStream out= new FileOutputStream(tmp) ) {
+            copy( in, out );
+        }
+        if ( tmp.length()!=e.length ) {
+            throw new IOException( "decompressed length is incorrect for "+filename );
+        }
+        Files.move( tmp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        entries.remove(filename); // the space is reclaimed when the segment is removed.
+        promoteCount++;
+        evict();
+        writeIndex();
+        return true;
+    }
+
+    /**
+     * remove the files matching the predicate from the store.
+     * @param test the predicate
+     */
+    synchronized void removeIf( Predicate<String> test ) {
+        if ( entries.keySet().removeIf(test) ) {
+            evict();
+            writeIndex();
+        }
+    }
+
+    /**
+     * copy the files of the segments which are mostly empty space to the current segment,
+     * and delete those segments.  The compressed bytes are copied as they are.
+     * @throws IOException
+     */
+    private void compact() throws IOException {
+        Map<Integer,Long> liveBytes= new HashMap<>();
+        for ( ColdEntry e: entries.values() ) {
+            liveBytes.merge( e.segment, e.compressedLength, Long::sum );
+        }
+        for ( int segment: listSegments() ) {
+            Long live= liveBytes.get(segment);
+            if ( segment==currentSegment || live==null ) {
+                continue; // segments without files are deleted by evict.
+            }
+            File f= getSegmentFile(segment);
+            long length= f.length();
+            if ( live>=COMPACT_FRACTION*length ) {
+                continue;
+            }
+            for ( ColdEntry e: entries.values() ) {
+                if ( e.segment!=segment ) continue;
+                byte[] compressed= readCompressed(e);
+                File segmentFile= getWritableSegment();
+                long offset= segmentFile.length();
+                try ( FileOutputStream out= new FileOutputStream(segmentFile,true) ) {
+                    out.write(compressed);
+                }
+                e.segment= currentSegment;
+                e.offset= offset;
+            }
+            writeIndex(); // before the segment is deleted, so the index never points into it.
+            if ( !f.delete() ) {
+                logger.log(Level.WARNING, "unable to delete {0}", f);
+            }
+            compactCount++;
+            logger.log(Level.FINE, "compacted cold segment {0}, {1} of {2} bytes in use", new Object[] { f, live, length } );
+        }
+    }
+
+    /**
+     * delete the segments which no longer contain any files, and then remove the oldest
+     * segments until the store is within its budget.  The segment files on disk are counted,
+     * so segments missing from the index are reclaimed too.  The current segment is kept.
+     */
+    private void evict() {
+        Set<Integer> live= new HashSet<>();
+        for ( ColdEntry e: entries.values() ) {
+            live.add( e.segment );
+        }
+        List<Integer> segments= listSegments();
+        long total= 0;
+        for ( int segment: segments ) {
+            total+= getSegmentFile(segment).length();
+        }
+        for ( int segment: segments ) {
+            if ( segment==currentSegment ) {
+                continue;
+            }
+            if ( total<=maxBytes && live.contains(segment) ) {
+                continue;
+            }
+            File f= getSegmentFile(segment);
+            long length= f.length();
+            entries.values().removeIf( (ColdEntry e) -> e.segment==segment );
+            if ( f.exists() && !f.delete() ) {
+                logger.log(Level.WARNING, "unable to delete {0}", f);
+                continue;
+            }
+            total-= length;
+            logger.log(Level.FINE, "removed cold segment {0}", f);
+        }
+    }
+
+    private static void copy( InputStream in, OutputStream out ) throws IOException {
+        byte[] buffer= new byte[65536];
+        int n;
+        while ( ( n= in.read(buffer) )!=-1 ) {
+            out.write( buffer, 0, n );
+        }
+    }
+
+    private void readIndex() {
+        for ( int segment: listSegments() ) {
+            currentSegment= Math.max( currentSegment, segment );
+        }
+        File indexFile= new File( root, INDEX_NAME );
+        if ( !indexFile.exists() ) {
+            return;
+        }
+        try ( BufferedReader r= new BufferedReader( new FileReader(indexFile) ) ) {
+            for ( String line= r.readLine(); line!=null; line= r.readLine() ) {
+                if ( line.startsWith("#") || line.trim().length()==0 ) continue;
+                String[] ss= line.split("\t",-2);
+                if ( ss.length!=6 ) {
+                    logger.log(Level.WARNING, "skipping bad line in cold index: {0}", line);
+                    continue;
+                }
+                ColdEntry e= new ColdEntry( ss[0], Integer.parseInt(ss[1]), Long.parseLong(ss[2]),
+                    Long.parseLong(ss[3]), Long.parseLong(ss[4]), ss[5].length()==0 ? null : ss[5] );
+                if ( getSegmentFile(e.segment).exists() ) {
+                    entries.put( e.filename, e );
+                }
+            }
+        } catch ( IOException | NumberFormatException ex ) {
+            logger.log(Level.WARNING, "unable to read cold index", ex);
+            entries.clear();
+        }
+    }
+
+    private void writeIndex() {
+        File indexFile= new File( root, INDEX_NAME );
+        File tmpFile= new File( root, INDEX_NAME+".tmp" );
+        try ( PrintWriter w= new PrintWriter( new FileWriter(tmpFile) ) ) {
+            w.println(INDEX_HEADER);
+            for ( ColdEntry e: entries.values() ) {
+                w.println( e.filename + "\t" + e.segment + "\t" + e.offset + "\t" + e.compressedLength
+                    + "\t" + e.length + "\t" + ( e.url==null ? "" : e.url ) );
+            }
+        } catch ( IOException ex ) {
+            logger.log(Level.WARNING, "unable to write cold index", ex);
+            return;
+        }
+        if ( !tmpFile.renameTo(indexFile) ) {
+            logger.log(Level.WARNING, "unable to rename cold index {0}", tmpFile);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format( "CdfColdStore %s: %d files in segments %d, promoted=%d demoted=%d read=%d compacted=%d",
+            root, entries.size(), currentSegment, promoteCount, demoteCount, readCount, compactCount );
+    }
+}
@@ -0,0 +1,149 @@
+package org.esdc.hapi;
+
+import gov.nasa.gsfc.spdf.cdfj.CDFException;
+import gov.nasa.gsfc.spdf.cdfj.CDFReader;
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The content of a CDF file, which is either a file on disk or a buffer in memory.  Small
+ * files are downloaded directly into memory, which avoids writing them to disk and then
+ * opening them again.
+ * @author jbf
+ */
+final class CdfContent {
+
+    private static final Logger logger= Logger.getLogger("hapi.esdc");
+
+    private final File file;
+    private final ByteBuffer buffer;
+
+    private CdfContent( File file, ByteBuffer buffer ) {
+        this.file= file;
+        this.buffer= buffer;
+    }
+
+    /**
+     * return the content of a file.
+     * @param file the file
+     * @return the content
+     */
+    static CdfContent of( File file ) {
+        return new CdfContent( file, null );
+    }
+
+    /**
+     * return the content held in memory.
+     * @param buffer the bytes of the CDF file, from position to limit.
+     * @return the content
+     */
+    static CdfContent of( ByteBuffer buffer ) {
+        return new CdfContent( null, buffer );
+    }
+
+    /**
+     * return the file, or null if the content is in memory.
+     * @return the file, or null
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * return the length of the CDF file in bytes.
+     * @return the length
+     */
+    long length() {
+        return file!=null ? file.length() : buffer.remaining();
+    }
+
+    /**
+     * open the CDF reader.  A file is memory-mapped by the reader.  The CDFJ library has no
+     * public method for reading a buffer, so its package-private methods CDFFactory.getVersion,
+     * which reads the buffer without copying it, and GenericReader.setImpl are used.  These
+     * are in the build of cdfj.jar pinned in pom.xml, and isInMemorySupported should be 
+     * checked before content is read into memory.
+     * @return the reader
+     * @throws CDFException.ReaderError
+     */
+    CDFReader openReader() throws CDFException.ReaderError {
+        if ( file!=null ) {
+            return new CDFReader( file.toString() );
+        }
+        try {
+            Object impl= getVersionMethod().invoke( null, buffer.duplicate() );
+            CDFReader reader= new CDFReader();
+            getSetImplMethod().invoke( reader, impl );
+            return reader;
+        } catch ( InvocationTargetException ex ) {
+            throw new CDFException.ReaderError( "unable to read CDF in memory: "+ex.getCause() );
+        } catch ( ReflectiveOperationException | RuntimeException ex ) {
+            setInMemoryUnsupported( ex );
+            throw new CDFException.ReaderError( "CDFJ library does not support reading from memory: "+ex );
+        }
+    }
+
+    /**
+     * null until the CDFJ library is checked, then true if CDFs can be read in memory.
+     */
+    private static Boolean inMemorySupported;
+
+    /**
+     * return true if the CDFJ library has the package-private methods used to read a CDF in
+     * memory.  When it does not, for example because cdfj.jar was replaced, this is logged 
+     * once as a warning and files are downloaded to disk instead.
+     * @return true if CDFs can be read in memory.
+     */
+    static synchronized boolean isInMemorySupported() {
+        if ( inMemorySupported==null ) {
+            try {
+                getVersionMethod();
+                getSetImplMethod();
+                inMemorySupported= true;
+            } catch ( ReflectiveOperationException | RuntimeException ex ) {
+                setInMemoryUnsupported( ex );
+            }
+        }
+        return inMemorySupported;
+    }
+
+    private static synchronized void setInMemoryUnsupported( Exception ex ) {
+        if ( !Boolean.FALSE.equals(inMemorySupported) ) {
+            logger.log(Level.WARNING, "the CDFJ library cannot read CDFs in memory, so small files are downloaded to disk: {0}", ex.toString() );
+        }
+        inMemorySupported= false;
+    }
+
+    private static Method getVersion;
+    private static Method setImpl;
+
+    private static synchronized Method getVersionMethod() throws ReflectiveOperationException {
+        if ( getVersion==null ) {
+            Class<?> c= Class.forName("gov.nasa.gsfc.spdf.cdfj.CDFFactory");
+            Method m= c.getDeclaredMethod( "getVersion", ByteBuffer.class );
+            m.setAccessible(true);
+            getVersion= m;
+        }
+        return getVersion;
+    }
+
+    private static synchronized Method getSetImplMethod() throws ReflectiveOperationException {
+        if ( setImpl==null ) {
+            Class<?> impl= Class.forName("gov.nasa.gsfc.spdf.cdfj.CDFImpl");
+            Class<?> c= Class.forName("gov.nasa.gsfc.spdf.cdfj.GenericReader");
+            Method m= c.getDeclaredMethod( "setImpl", impl );
+            m.setAccessible(true);
+            setImpl= m;
+        }
+        return setImpl;
+    }
+
+    @Override
+    public String toString() {
+        return file!=null ? file.toString() : "(in memory, "+buffer.remaining()+" bytes)";
+    }
+}
@@ -0,0 +1,722 @@
+package org.esdc.hapi;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Bounded cache of the CDF files downloaded from SOAR.  The files are kept in a download
+ * area, and an index of the entries (size, last access, source URL) is kept in the file
+ * "cache.index" within the area, so that the server need not scan the directory on startup.
+ *
+ * Eviction uses a segmented LRU: new files are put into a "probation" segment, and
+ * are promoted to the "protected" segment when they are read again.  Files are evicted
+ * from probation first, so that a long scan through a waveform product, where each file
+ * is read once, will pass through without pushing out the files of frequently used
+ * datasets like solo_L2_mag-rtn-normal.
+ *
+ * The cache is configured with system properties:
+ * <ul>
+ * <li>esdc.cache.dir the download area, by default /home/tomcat/tmp/esdc/&lt;user&gt;/
+ * <li>esdc.cache.maxBytes the byte budget, by default 20000000000 (20 GB).
+ * <li>esdc.cache.coldMaxBytes the budget of the compressed tier, by default 10000000000 (10 GB).
+ * Zero disables the compressed tier, so that evicted files are deleted.
+ * <li>esdc.cache.coldMaxFileBytes files larger than this are deleted rather than compressed,
+ * by default 100000000 (100 MB).
+ * </ul>
+ *
+ * Evicted files are compressed into a second tier (see CdfColdStore) in the "cold"
+ * directory of the download area, and are decompressed back into the cache when read again.
+ * @author jbf
+ */
+public class CdfFileCache {
+
+    private static final Logger logger= Logger.getLogger("hapi.esdc");
+
+    private static final String INDEX_NAME= "cache.index";
+
+    private static final String INDEX_HEADER= "# esdc-hapi cache index v1: filename, size, lastAccess, segment, url";
+
+    /**
+     * fraction of the budget which may be used by the protected segment.
+     */
+    private static final double PROTECTED_FRACTION= 0.8;
+
+    /**
+     * the index is written at most this often when only access times have changed, and
+     * changes not yet written are written by a timer at this interval.
+     */
+    private static final long INDEX_WRITE_INTERVAL_MILLIS= 60000;
+
+    /**
+     * the index is written after this many files are added, rather than after each one.
+     */
+    private static final int INDEX_WRITE_CHANGES= 64;
+
+    private static CdfFileCache instance;
+    
+    /**
+     * SOAR filenames end in the version, like "solo_L2_mag-rtn-normal_20230901_V01.cdf"
+     */
+    private static final Pattern VERSIONED_NAME= Pattern.compile("(.+)_V(\\d+)([A-Za-z]*)\\.cdf");
+    
+    /**
+     * return the filename without the version, so that versions of the same product can be
+     * identified.  For example "solo_L2_mag-rtn-normal_20230901_V02.cdf" returns 
+     * "solo_L2_mag-rtn-normal_20230901".
+     * @param filename the filename
+     * @return the name without the version, or the filename if it has no version.
+     */
+    static String getUnversionedName( String filename ) {
+        Matcher m= VERSIONED_NAME.matcher(filename);
+        return m.matches() ? m.group(1) : filename;
+    }
+    
+    /**
+     * return the version number of the file.  For example "solo_L2_mag-rtn-normal_20230901_V02.cdf" 
+     * returns 2.
+     * @param filename the filename
+     * @return the version, or -1 if the filename has no version.
+     */
+    static int getFileVersion( String filename ) {
+        Matcher m= VERSIONED_NAME.matcher(filename);
+        return m.matches() ? Integer.parseInt(m.group(2)) : -1;
+    }
+
+    /**
+     * return the cache used by all the record sources in this process.
+     * @return the cache
+     */
+    public static synchronized CdfFileCache getInstance() {
+        if ( instance==null ) {
+            String s= System.getProperty("esdc.cache.maxBytes","20000000000");
+            instance= new CdfFileCache( getDefaultCacheRoot(), Long.parseLong(s) );
+            long coldMaxBytes= Long.parseLong( System.getProperty("esdc.cache.coldMaxBytes","10000000000") );
+            if ( coldMaxBytes>0 ) {
+                long coldMaxFileBytes= Long.parseLong( System.getProperty("esdc.cache.coldMaxFileBytes","100000000") );
+                instance.setColdStore( new CdfColdStore( new File( instance.getRoot(), "cold" ), coldMaxBytes, coldMaxFileBytes ) );
+            }
+        }
+        return instance;
+    }
+
+    private static File getDefaultCacheRoot() {
+        String dir= System.getProperty("esdc.cache.dir");
+        if ( dir!=null ) {
+            return new File(dir);
+        }
+        String u= System.getProperty("user.name");
+        if ( System.getProperty("os.name").equals("Mac OS X") ) {
+            return new File( "/Users/jbf/tmp/esdc/"+u+"/" );
+        } else {
+            return new File( "/home/tomcat/tmp/esdc/"+u+"/" );
+        }
+    }
+
+    private static class Entry {
+        String filename;
+        long size;
+        long lastAccess;
+        String url;
+
+        private Entry( String filename, long size, long lastAccess, String url ) {
+            this.filename= filename;
+            this.size= size;
+            this.lastAccess= lastAccess;
+            this.url= url;
+        }
+    }
+
+    private final File root;
+    private final long maxBytes;
+    private final long maxProtectedBytes;
+
+    /**
+     * files read once, in access order.  These are evicted first.
+     */
+    private final LinkedHashMap<String,Entry> probation= new LinkedHashMap<>(16,0.75f,true);
+
+    /**
+     * files read more than once, in access order.
+     */
+    private final LinkedHashMap<String,Entry> protectedEntries= new LinkedHashMap<>(16,0.75f,true);
+
+    private long probationBytes;
+    private long protectedBytes;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    private long lastIndexWrite;
+    private boolean indexDirty;
+
+    /**
+     * the number of files added since the index was written.
+     */
+    private int indexChanges;
+
+    /**
+     * writes the index when it has changed, so that files added are not lost when the
+     * server stops.
+     */
+    private ScheduledExecutorService indexWriter;
+
+    /**
+     * the compressed tier, or null.
+     */
+    private CdfColdStore coldStore;
+
+    private long coldHitCount;
+
+    /**
+     * single thread which compresses the evicted files, so that readers are not held up.
+     */
+    private ExecutorService demoteExecutor;
+
+    /**
+     * create the cache, reading the index from the download area.
+     * @param root the download area
+     * @param maxBytes the byte budget for the files
+     */
+    public CdfFileCache( File root, long maxBytes ) {
+        this.root= root;
+        this.maxBytes= maxBytes;
+        this.maxProtectedBytes= (long)( maxBytes * PROTECTED_FRACTION );
+        if ( !root.exists() ) {
+            if ( !root.mkdirs() ) {
+                logger.warning("fail to make download area");
+            }
+        }
+        readIndex();
+        synchronized (this) {
+            evict();
+        }
+        startIndexWriter();
+    }
+
+    /**
+     * start the timer which writes the index when it has changed, and write it when the
+     * server stops.
+     */
+    private void startIndexWriter() {
+        indexWriter= Executors.newSingleThreadScheduledExecutor( (Runnable r) -> {
+            Thread t= new Thread( r, "esdc-cache-index" );
+            t.setDaemon(true);
+            return t;
+        });
+        indexWriter.scheduleWithFixedDelay( this::flush, INDEX_WRITE_INTERVAL_MILLIS, 
+            INDEX_WRITE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS );
+        Runtime.getRuntime().addShutdownHook( new Thread( this::flush, "esdc-cache-index-flush" ) );
+    }
+
+    /**
+     * set the compressed tier, where evicted files are kept.
+     * @param coldStore the compressed tier, or null to delete evicted files.
+     */
+    synchronized void setColdStore( CdfColdStore coldStore ) {
+        this.coldStore= coldStore;
+        if ( coldStore!=null && demoteExecutor==null ) {
+            demoteExecutor= Executors.newSingleThreadExecutor( (Runnable r) -> {
+                Thread t= new Thread( r, "esdc-cold-store" );
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * return the download area
+     * @return the download area
+     */
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * return the location in the download area where the file should be downloaded.  Note
+     * the file is not part of the cache until put is called.
+     * @param filename the filename, like "solo_L2_mag-rtn-normal_20230901_V01.cdf"
+     * @return the file within the download area.
+     */
+    public File getFile( String filename ) {
+        return new File( root, filename );
+    }
+
+    /**
+     * return the cached file, or null if the file is not in the cache.  A file in the
+     * compressed tier is decompressed back into the cache.
+     * @param filename the filename, like "solo_L2_mag-rtn-normal_20230901_V01.cdf"
+     * @return the file, or null if the file is not cached.
+     */
+    public File get( String filename ) {
+        File f= getLoose(filename);
+        if ( f!=null ) {
+            return f;
+        }
+        CdfColdStore cold;
+        synchronized (this) {
+            cold= coldStore;
+        }
+        if ( cold!=null && cold.contains(filename) ) {
+            String url= cold.getUrl(filename);
+            try {
+                if ( cold.promote( filename, getFile(filename) ) ) {
+                    logger.log(Level.FINE, "promoted {0} from the compressed tier", filename);
+                    synchronized (this) {
+                        coldHitCount++;
+                    }
+                    put( filename, url );
+                    return getFile(filename);
+                }
+            } catch ( IOException ex ) {
+                logger.log(Level.WARNING, "unable to promote "+filename, ex);
+                cold.removeIf( (String s) -> s.equals(filename) );
+            }
+        }
+        return null;
+    }
+
+    /**
+     * return the bytes of a small file which is in the compressed tier, decompressed straight
+     * into memory.  The file is left in the compressed tier, and is moved back into the cache
+     * when it is put.  As with get, this counts as a miss and a hit in the compressed tier.
+     * @param filename the filename
+     * @param maxBytes files longer than this are not read.
+     * @return the bytes, or null if the file is not in the compressed tier or is too long.
+     */
+    public ByteBuffer getFromColdStore( String filename, int maxBytes ) {
+        CdfColdStore cold;
+        synchronized (this) {
+            cold= coldStore;
+        }
+        if ( cold==null ) {
+            return null;
+        }
+        try {
+            ByteBuffer result= cold.read( filename, maxBytes );
+            if ( result!=null ) {
+                logger.log(Level.FINE, "read {0} from the compressed tier", filename);
+                synchronized (this) {
+                    missCount++;
+                    coldHitCount++;
+                }
+            }
+            return result;
+        } catch ( IOException ex ) {
+            logger.log(Level.WARNING, "unable to read "+filename, ex);
+            cold.removeIf( (String s) -> s.equals(filename) );
+            return null;
+        }
+    }
+
+    /**
+     * return the file if it is among the uncompressed files, promoting it to the protected
+     * segment.
+     * @param filename the filename
+     * @return the file, or null.
+     */
+    private synchronized File getLoose( String filename ) {
+        Entry e= protectedEntries.get(filename);
+        if ( e==null ) {
+            e= probation.remove(filename);
+            if ( e!=null ) {
+                probationBytes-= e.size;
+                protectedEntries.put( filename, e );
+                protectedBytes+= e.size;
+                demote();
+            }
+        }
+        if ( e==null ) {
+            missCount++;
+            return null;
+        }
+        File f= getFile(filename);
+        if ( !f.exists() ) {
+            logger.log(Level.INFO, "cached file was removed: {0}", f);
+            remove(filename);
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        e.lastAccess= System.currentTimeMillis();
+        indexDirty= true;
+        if ( e.lastAccess-lastIndexWrite > INDEX_WRITE_INTERVAL_MILLIS ) {
+            writeIndex();
+        }
+        return f;
+    }
+
+    /**
+     * return the cached file, or null if it is not among the uncompressed files.  Unlike get,
+     * this does not count as a hit or miss, and does not change the order of eviction.
+     * @param filename the filename
+     * @return the file, or null.
+     */
+    public File peek( String filename ) {
+        synchronized (this) {
+            if ( !probation.containsKey(filename) && !protectedEntries.containsKey(filename) ) {
+                return null;
+            }
+        }
+        File f= getFile(filename);
+        return f.exists() ? f : null;
+    }
+
+    /**
+     * count a miss for a file which was read without calling get, such as a file downloaded
+     * into memory.
+     */
+    public synchronized void countMiss() {
+        missCount++;
+    }
+
+    /**
+     * return true if the file is in the cache, including the compressed tier.  This does not
+     * count as an access of the file.
+     * @param filename the filename
+     * @return true if the file is in the cache.
+     */
+    public boolean contains( String filename ) {
+        CdfColdStore cold;
+        synchronized (this) {
+            if ( probation.containsKey(filename) || protectedEntries.containsKey(filename) ) {
+                return true;
+            }
+            cold= coldStore;
+        }
+        return cold!=null && cold.contains(filename);
+    }
+
+    /**
+     * add the file, which has been downloaded to getFile(filename), to the cache.  This
+     * may evict other files to keep within the budget.
+     * @param filename the filename
+     * @param url the source of the file, or null.
+     */
+    public synchronized void put( String filename, String url ) {
+        File f= getFile(filename);
+        removeEntry(filename);
+        removeSupersededVersions(filename);
+        if ( coldStore!=null ) {
+            coldStore.removeIf( (String s) -> s.equals(filename) || isSuperseded( s, filename ) );
+        }
+        Entry e= new Entry( filename, f.length(), System.currentTimeMillis(), url );
+        probation.put( filename, e );
+        probationBytes+= e.size;
+        evict();
+        indexDirty= true;
+        indexChanges++;
+        if ( indexChanges>=INDEX_WRITE_CHANGES ) {
+            writeIndex();
+        }
+    }
+
+    /**
+     * remove the file from the cache and from the download area.
+     * @param filename the filename
+     */
+    public synchronized void remove( String filename ) {
+        Entry e= removeEntry(filename);
+        if ( e!=null ) {
+            deleteFile(e);
+        }
+    }
+
+    /**
+     * remove the older versions of the file, which are superseded by this file.
+     * @param filename the new file, like "solo_L2_mag-rtn-normal_20230901_V02.cdf"
+     */
+    private void removeSupersededVersions( String filename ) {
+        if ( getFileVersion(filename)<0 ) return;
+        List<String> superseded= new ArrayList<>();
+        for ( Map<String,Entry> segment: Arrays.asList( probation, protectedEntries ) ) {
+            for ( String f: segment.keySet() ) {
+                if ( isSuperseded( f, filename ) ) {
+                    superseded.add(f);
+                }
+            }
+        }
+        for ( String f: superseded ) {
+            logger.log(Level.FINE, "{0} is superseded by {1}", new Object[] { f, filename } );
+            remove(f);
+        }
+    }
+
+    /**
+     * return true if the file f is an older version of filename.
+     * @param f a filename
+     * @param filename the new file
+     * @return true if f is an older version of filename.
+     */
+    private static boolean isSuperseded( String f, String filename ) {
+        int version= getFileVersion(filename);
+        if ( version<0 ) return false;
+        String base= getUnversionedName(filename);
+        return f.startsWith(base) && getUnversionedName(f).equals(base) && getFileVersion(f)<version;
+    }
+
+    /**
+     * remove the entry from the segments, leaving the file.
+     * @param filename the filename
+     * @return the entry, or null if the file was not in the cache.
+     */
+    private Entry removeEntry( String filename ) {
+        Entry e= probation.remove(filename);
+        if ( e!=null ) {
+            probationBytes-= e.size;
+        } else {
+            e= protectedEntries.remove(filename);
+            if ( e!=null ) {
+                protectedBytes-= e.size;
+            }
+        }
+        if ( e!=null ) {
+            indexDirty= true;
+            CdfReaderCache.getInstance().invalidate( getFile(filename) );
+        }
+        return e;
+    }
+
+    /**
+     * move the least recently used protected entries back to probation, when the protected
+     * segment is over its budget.
+     */
+    private void demote() {
+        Iterator<Entry> iter= protectedEntries.values().iterator();
+        while ( protectedBytes>maxProtectedBytes && iter.hasNext() ) {
+            Entry e= iter.next();
+            iter.remove();
+            protectedBytes-= e.size;
+            probation.put( e.filename, e );
+            probationBytes+= e.size;
+        }
+    }
+
+    /**
+     * evict entries until the cache is within the budget, taking probation entries first.
+     * The most recent entry is kept, even if it alone is over the budget.  Evicted files
+     * are handed to the compressed tier when there is one.
+     */
+    private void evict() {
+        while ( probationBytes+protectedBytes>maxBytes ) {
+            Map<String,Entry> segment;
+            if ( probation.size()>1 ) {
+                segment= probation;
+            } else if ( !protectedEntries.isEmpty() ) {
+                segment= protectedEntries;
+            } else {
+                break;
+            }
+            Iterator<Entry> iter= segment.values().iterator();
+            Entry e= iter.next();
+            iter.remove();
+            if ( segment==probation ) {
+                probationBytes-= e.size;
+            } else {
+                protectedBytes-= e.size;
+            }
+            CdfReaderCache.getInstance().invalidate( getFile(e.filename) );
+            if ( coldStore!=null ) {
+                demoteFile(e);
+            } else {
+                deleteFile(e);
+            }
+            evictionCount++;
+            indexDirty= true;
+            logger.log(Level.FINE, "evict {0} ({1} bytes)", new Object[] { e.filename, e.size } );
+        }
+    }
+
+    /**
+     * move the file aside and compress it into the compressed tier on the demote thread.
+     * The file is renamed first so that a new download of the same file does not collide.
+     */
+    private void demoteFile( Entry e ) {
+        File f= getFile(e.filename);
+        File moved= new File( root, e.filename+".demote" );
+        if ( !f.renameTo(moved) ) {
+            deleteFile(e);
+            return;
+        }
+        final CdfColdStore cold= coldStore;
+        demoteExecutor.submit( () -> cold.demote( e.filename, moved, e.url ) );
+    }
+
+    private void deleteFile( Entry e ) {
+        File f= getFile(e.filename);
+        if ( f.exists() && !f.delete() ) {
+            logger.log(Level.WARNING, "unable to delete {0}", f);
+        }
+    }
+
+    /**
+     * read the index, or scan the download area when there is no index.
+     */
+    private synchronized void readIndex() {
+        File indexFile= new File( root, INDEX_NAME );
+        List<Entry> entries= new ArrayList<>();
+        List<Boolean> isProtected= new ArrayList<>();
+        if ( indexFile.exists() ) {
+            try ( BufferedReader r= new BufferedReader( new FileReader(indexFile) ) ) {
+                for ( String line= r.readLine(); line!=null; line= r.readLine() ) {
+                    if ( line.startsWith("#") || line.trim().length()==0 ) continue;
+                    String[] ss= line.split("\t",-2);
+                    if ( ss.length!=5 ) {
+                        logger.log(Level.WARNING, "skipping bad line in cache index: {0}", line);
+                        continue;
+                    }
+                    File f= getFile(ss[0]);
+                    if ( !f.exists() ) continue;
+                    entries.add( new Entry( ss[0], f.length(), Long.parseLong(ss[2]), ss[4].length()==0 ? null : ss[4] ) );
+                    isProtected.add( ss[3].equals("protected") );
+                }
+            } catch ( IOException | NumberFormatException ex ) {
+                logger.log(Level.WARNING, "unable to read cache index, scanning download area", ex);
+                entries.clear();
+                isProtected.clear();
+            }
+        }
+        if ( entries.isEmpty() ) {
+            File[] ff= root.listFiles();
+            if ( ff!=null ) {
+                for ( File f: ff ) {
+                    if ( f.isFile() && f.getName().endsWith(".cdf") ) {
+                        entries.add( new Entry( f.getName(), f.length(), f.lastModified(), null ) );
+                        isProtected.add( false );
+                    }
+                }
+            }
+            entries.sort( (e1,e2) -> Long.compare( e1.lastAccess, e2.lastAccess ) );
+        }
+        for ( int i=0; i<entries.size(); i++ ) {
+            Entry e= entries.get(i);
+            if ( isProtected.get(i) ) {
+                protectedEntries.put( e.filename, e );
+                protectedBytes+= e.size;
+            } else {
+                probation.put( e.filename, e );
+                probationBytes+= e.size;
+            }
+        }
+        demote();
+        logger.log(Level.FINE, "cache has {0} files, {1} bytes",
+            new Object[] { probation.size()+protectedEntries.size(), probationBytes+protectedBytes } );
+    }
+
+    /**
+     * write the index to a temporary file and then rename it, so that a partially written
+     * index is never read.  Entries are written least recently used first.
+     */
+    private void writeIndex() {
+        File indexFile= new File( root, INDEX_NAME );
+        File tmpFile= new File( root, INDEX_NAME+".tmp" );
+        try ( PrintWriter w= new PrintWriter( new FileWriter(tmpFile) ) ) {
+            w.println(INDEX_HEADER);
+            for ( Entry e: probation.values() ) {
+                writeIndexEntry( w, e, "probation" );
+            }
+            for ( Entry e: protectedEntries.values() ) {
+                writeIndexEntry( w, e, "protected" );
+            }
+        } catch ( IOException ex ) {
+            logger.log(Level.WARNING, "unable to write cache index", ex);
+            return;
+        }
+        if ( !tmpFile.renameTo(indexFile) ) {
+            logger.log(Level.WARNING, "unable to rename cache index {0}", tmpFile);
+            return;
+        }
+        lastIndexWrite= System.currentTimeMillis();
+        indexDirty= false;
+        indexChanges= 0;
+    }
+
+    private static void writeIndexEntry( PrintWriter w, Entry e, String segment ) {
+        w.print(e.filename);
+        w.print('\t');
+        w.print(e.size);
+        w.print('\t');
+        w.print(e.lastAccess);
+        w.print('\t');
+        w.print(segment);
+        w.print('\t');
+        w.println( e.url==null ? "" : e.url );
+    }
+
+    /**
+     * write the index if files were added or removed, or access times have changed, since
+     * it was last written.  This is also done by a timer and when the server stops.
+     */
+    public synchronized void flush() {
+        if ( indexDirty ) {
+            writeIndex();
+        }
+    }
+
+    /**
+     * return the number of times a file was found in the cache.
+     * @return the number of hits
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * return the number of times a file was not found in the cache.
+     * @return the number of misses
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * return the number of files removed to keep within the budget.
+     * @return the number of evictions
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * return the number of times a file was decompressed from the compressed tier.
+     * @return the number of hits in the compressed tier
+     */
+    public synchronized long getColdHitCount() {
+        return coldHitCount;
+    }
+
+    /**
+     * return the number of bytes in the cache.
+     * @return the number of bytes in the cache.
+     */
+    public synchronized long getSizeBytes() {
+        return probationBytes+protectedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format( "CdfFileCache %s: %d files, %d of %d bytes, hits=%d misses=%d evictions=%d coldHits=%d",
+            root, probation.size()+protectedEntries.size(), probationBytes+protectedBytes, maxBytes,
+            hitCount, missCount, evictionCount, coldHitCount );
+    }
+
+}
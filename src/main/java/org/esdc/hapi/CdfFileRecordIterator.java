@@ -6,8 +6,8 @@ import gov.nasa.gsfc.spdf.cdfj.CDFReader;
 import java.io.File;
 import java.lang.management.ManagementFactory;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 import java.text.MessageFormat;
-import java.text.ParseException;
 import java.util.Iterator;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Formatter;
@@ -18,7 +18,6 @@ import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.hapiserver.HapiRecord;
-import org.hapiserver.TimeUtil;
 
 /**
  *
@@ -84,77 +83,154 @@ public class CdfFileRecordIterator  implements Iterator<HapiRecord> {
         public String[] adaptStringArray( int index ) {
             return null;
         }
+        /**
+         * write the values of records as HAPI binary into the buffer, one value per row.
+         * @param index the index of the first record
+         * @param count the number of records
+         * @param buffer the little-endian buffer, which is backed by an array.
+         * @param offset the position in the buffer of the value of the first record
+         * @param rowBytes the number of bytes in each row
+         * @param integer true if the parameter is integer (int32) in the info, false for double (float64).
+         */
+        public void writeBinary( int index, int count, ByteBuffer buffer, int offset, int rowBytes, boolean integer ) {
+            throw new IllegalArgumentException("binary is not supported for "+getClass().getSimpleName());
+        }
+        /**
+         * return the number of bytes of each value in HAPI binary.
+         * @param integer true if the parameter is integer in the info.
+         * @return the number of bytes
+         */
+        public int binaryLength( boolean integer ) {
+            return integer ? 4 : 8;
+        }
+        /**
+         * in cursor mode, use the arrays returned for each record by the old adapter, or
+         * make them, so that they are reused for each record.
+         * @param old the adapter of the previous block for the same variable, or null.
+         */
+        public void reuseBuffers( Adapter old ) {
+        }
     }
     
+    /**
+     * days from 0000-01-01, the origin of CDF_EPOCH and CDF_EPOCH16, to 1970-01-01.
+     */
+    private static final long DAYS_0000_TO_1970= 719528;
+    
     private static class IsotimeEpochAdapter extends Adapter {
-        int julianDay;
-        long cdfTT2000= Long.MAX_VALUE;
+        
+        double[] array;
+        
+        IsoTimeFormatter formatter;
+        
+        private IsotimeEpochAdapter( double[] array, int length ) {
+            this.array= array;
+            this.formatter= new IsoTimeFormatter(length);
+        }
         
         /**
-         * the time in milliseconds since year 1 for cdfEpoch.
+         * the day and nanoseconds of the last time converted.
          */
-        double baseTime;
+        long epochDay;
+        long nanos;
+        
+        private void convert( int index ) {
+            double t= array[index]; // milliseconds since 0000-01-01
+            double day= Math.floor( t / 86400000. );
+            // Epoch is only precise to about a microsecond, so this is rounded to microseconds.
+            nanos= Math.round( ( t - day * 86400000. ) * 1000 ) * 1000;
+            epochDay= (long)day - DAYS_0000_TO_1970;
+            if ( nanos>=86400000000000L ) {
+                epochDay++;
+                nanos-= 86400000000000L;
+            }
+        }
+        
+        @Override
+        public String adaptString( int index) {
+            convert( index );
+            return formatter.format( epochDay, nanos );
+        }
+        
+        @Override
+        public void writeBinary( int index, int count, ByteBuffer buffer, int offset, int rowBytes, boolean integer ) {
+            byte[] dest= buffer.array();
+            int pos= buffer.arrayOffset() + offset;
+            for ( int i=0; i<count; i++ ) {
+                convert( index+i );
+                formatter.format( epochDay, nanos, dest, pos );
+                pos+= rowBytes;
+            }
+        }
+        
+        @Override
+        public int binaryLength( boolean integer ) {
+            return formatter.getLength();
+        }
         
         /**
-         * 1000000 for epoch, which is a milliseconds offset.
+         * return the time in microseconds since year 0, which is ordered like the times.
+         * Microseconds are used because nanoseconds since year 0 do not fit in a long.
          */
-        double baseUnitsFactor;
-        String baseYYYYmmddTHH;
+        @Override
+        public long adaptLong(int index) {
+            return Math.round( array[index] * 1000 );
+        }
         
-        double[] array;
+    }
+    
+    /**
+     * CDF_EPOCH16 is two doubles, seconds since 0000-01-01 and picoseconds within the second.
+     */
+    private static class IsotimeEpoch16Adapter extends Adapter {
         
-        String format= ":%02d:%02d.%09d";
-        int formatFactor= 1; // number by which to round
+        double[][] array;
         
-        private IsotimeEpochAdapter( double[] array, int length ) {
+        IsoTimeFormatter formatter;
+        
+        private IsotimeEpoch16Adapter( double[][] array, int length ) {
             this.array= array;
-            double d= array[0];
-            double us2000= ( d - 6.3113904E13 ) * 1000; // ms -> microseconds
-            double day2000= Math.floor( us2000 / 86400000000. ); // days since 2000-01-01.
-            double usDay= us2000 - day2000 * 86400000000.; // microseconds within this day.
-            double ms1970= day2000 * 86400000. + 946684800000.;
-            String baseDay= TimeUtil.fromMillisecondsSince1970((long)ms1970);
-            baseYYYYmmddTHH= baseDay.substring(0,10)+"T00";
-            baseTime= (long)(d-usDay/1000);
-            switch ( length ) { // YYYY4hh7mm0HH3MM6SS9NNNNNNNNNZ
-                case 24:
-                    format=":%02d:%02d.%03dZ";
-                    formatFactor= 1000000;
-                    break;
-                case 27:
-                    format=":%02d:%02d.%06dZ";
-                    formatFactor= 1000000;
-                    break;
-                case 30:
-                    format=":%02d:%02d.%09dZ";
-                    break;
-                default:
-                    throw new IllegalArgumentException("not supported");
-            }
+            this.formatter= new IsoTimeFormatter(length);
+        }
+        
+        @Override
+        public String adaptString( int index ) {
+            long seconds= (long)array[index][0];
+            long epochDay= Math.floorDiv( seconds, 86400 );
+            long nanos= ( seconds - epochDay * 86400 ) * 1000000000L + (long)( array[index][1] / 1000 );
+            return formatter.format( epochDay - DAYS_0000_TO_1970, nanos );
         }
         
-        private String formatTime( double t ) {
-            double offset= t-baseTime;  // milliseconds
-            while ( offset>=3600000. ) {
-                double hours= offset / 3600000.;
-                baseTime = baseTime + hours * 3600000.;
-                int hour= Integer.parseInt(baseYYYYmmddTHH.substring(11,13));
-                baseYYYYmmddTHH= baseYYYYmmddTHH.substring(0,11)+String.format("%02d",(int)(hour+hours));
-                baseYYYYmmddTHH= TimeUtil.normalizeTimeString(baseYYYYmmddTHH).substring(0,13);
-                offset= t-baseTime;
+        @Override
+        public void writeBinary( int index, int count, ByteBuffer buffer, int offset, int rowBytes, boolean integer ) {
+            byte[] dest= buffer.array();
+            int pos= buffer.arrayOffset() + offset;
+            for ( int i=0; i<count; i++ ) {
+                double[] rec= array[index+i];
+                long seconds= (long)rec[0];
+                long epochDay= Math.floorDiv( seconds, 86400 );
+                long nanos= ( seconds - epochDay * 86400 ) * 1000000000L + (long)( rec[1] / 1000 );
+                formatter.format( epochDay - DAYS_0000_TO_1970, nanos, dest, pos );
+                pos+= rowBytes;
             }
-            int nanos= (int)( (offset*1000000) % 1000000000. );
-            offset= (int)( offset / 1000 ); // now it's in seconds.  Note offset must be positive for this to work.
-            int seconds= (int)(offset % 60);
-            int minutes= (int)(offset / 60); // now it's in minutes
-            return baseYYYYmmddTHH + String.format( format, minutes, seconds, nanos/formatFactor );
-        }        
+        }
         
         @Override
-        public String adaptString( int index) {
-            return formatTime( array[index] );
+        public int binaryLength( boolean integer ) {
+            return formatter.getLength();
+        }
+        
+        /**
+         * return the time in nanoseconds since 1970-01-01.
+         */
+        @Override
+        public long adaptLong( int index ) {
+            return toLong( array[index] );
         }
         
+        private static long toLong( double[] rec ) {
+            return ( (long)rec[0] - DAYS_0000_TO_1970 * 86400 ) * 1000000000L + (long)( rec[1] / 1000 );
+        }
     }
     
     private static class DoubleDoubleAdapter extends Adapter {
@@ -171,12 +247,25 @@ public class CdfFileRecordIterator  implements Iterator<HapiRecord> {
             }
             return this.array[index];
         }
+        
+        @Override
+        public void writeBinary( int index, int count, ByteBuffer buffer, int offset, int rowBytes, boolean integer ) {
+            for ( int i=index; i<index+count; i++ ) {
+                if ( integer ) buffer.putInt( offset, (int)array[i] ); else buffer.putDouble( offset, array[i] );
+                offset+= rowBytes;
+            }
+        }
     }
     
     private static class DoubleArrayDoubleAdapter extends Adapter {
         double[][] array;
         int n; // there's a weird bit of code where the Java library is giving me double arrays containing ints.
         
+        /**
+         * null, or the array reused for each record in cursor mode.
+         */
+        int[] buffer;
+        
         private DoubleArrayDoubleAdapter( double[][] array ) {
             this.array= array;
             if ( array.length>0 ) {
@@ -191,7 +280,7 @@ public class CdfFileRecordIterator  implements Iterator<HapiRecord> {
 
         @Override
         public int[] adaptIntegerArray(int index) {
-            int[] adapt= new int[n];
+            int[] adapt= buffer!=null ? buffer : new int[n];
             double[] rec= this.array[index];
             for ( int i=0; i<n; i++ ) {
                 adapt[i]= (int)rec[i];
@@ -199,6 +288,160 @@ public class CdfFileRecordIterator  implements Iterator<HapiRecord> {
             return adapt;
         }
         
+        @Override
+        public void writeBinary( int index, int count, ByteBuffer buffer, int offset, int rowBytes, boolean integer ) {
+            for ( int i=index; i<index+count; i++ ) {
+                double[] rec= this.array[i];
+                if ( integer ) {
+                    for ( int k=0; k<n; k++ ) buffer.putInt( offset + 4*k, (int)rec[k] );
+                } else {
+                    for ( int k=0; k<n; k++ ) buffer.putDouble( offset + 8*k, rec[k] );
+                }
+                offset+= rowBytes;
+            }
+        }
+        
+        @Override
+        public int binaryLength( boolean integer ) {
+            return ( integer ? 4 : 8 ) * n;
+        }
+        
+        @Override
+        public void reuseBuffers( Adapter old ) {
+            int[] oldBuffer= old instanceof DoubleArrayDoubleAdapter ? ((DoubleArrayDoubleAdapter)old).buffer : null;
+            buffer= oldBuffer!=null && oldBuffer.length==n ? oldBuffer : new int[n];
+        }
+        
+    }
+    
+    /**
+     * the values of a variable of two or more dimensions, read as one array with the n 
+     * values of each record in turn, in row-major order.  The nested arrays of each record
+     * are never made, and there is no copy to flatten them.
+     */
+    private static class FlatDoubleArrayAdapter extends Adapter {
+        double[] array;
+        int n;
+        
+        /**
+         * null, or the arrays reused for each record in cursor mode.
+         */
+        double[] doubleBuffer;
+        int[] buffer;
+        
+        private FlatDoubleArrayAdapter( double[] array, int n ) {
+            this.array= array;
+            this.n= n;
+        }
+        
+        @Override
+        public double[] adaptDoubleArray(int index) {
+            double[] adapt= doubleBuffer!=null ? doubleBuffer : new double[n];
+            System.arraycopy( array, index*n, adapt, 0, n );
+            return adapt;
+        }
+        
+        @Override
+        public int[] adaptIntegerArray(int index) {
+            int[] adapt= buffer!=null ? buffer : new int[n];
+            int offset= index*n;
+            for ( int i=0; i<n; i++ ) {
+                adapt[i]= (int)array[offset+i];
+            }
+            return adapt;
+        }
+        
+        @Override
+        public void writeBinary( int index, int count, ByteBuffer buffer, int offset, int rowBytes, boolean integer ) {
+            int i= index*n;
+            for ( int irec=0; irec<count; irec++ ) {
+                if ( integer ) {
+                    for ( int k=0; k<n; k++ ) buffer.putInt( offset + 4*k, (int)array[i+k] );
+                } else {
+                    for ( int k=0; k<n; k++ ) buffer.putDouble( offset + 8*k, array[i+k] );
+                }
+                i+= n;
+                offset+= rowBytes;
+            }
+        }
+        
+        @Override
+        public int binaryLength( boolean integer ) {
+            return ( integer ? 4 : 8 ) * n;
+        }
+        
+        @Override
+        public void reuseBuffers( Adapter old ) {
+            FlatDoubleArrayAdapter a= old instanceof FlatDoubleArrayAdapter ? (FlatDoubleArrayAdapter)old : null;
+            doubleBuffer= a!=null && a.doubleBuffer!=null && a.n==n ? a.doubleBuffer : new double[n];
+            buffer= a!=null && a.buffer!=null && a.n==n ? a.buffer : new int[n];
+        }
+    }
+    
+    /**
+     * the value of a variable which does not vary with record, which is the same for every
+     * record, so it is kept once rather than copied for each record of the block.
+     */
+    private static class ConstantAdapter extends Adapter {
+        /**
+         * the adapter for the one record of the value.
+         */
+        Adapter value;
+        
+        private ConstantAdapter( Adapter value ) {
+            this.value= value;
+        }
+        
+        @Override
+        public String adaptString( int index ) {
+            return value.adaptString(0);
+        }
+        @Override
+        public double adaptDouble( int index ) {
+            return value.adaptDouble(0);
+        }
+        @Override
+        public int adaptInteger( int index ) {
+            return value.adaptInteger(0);
+        }
+        @Override
+        public long adaptLong( int index ) {
+            return value.adaptLong(0);
+        }
+        @Override
+        public double[] adaptDoubleArray( int index ) {
+            return value.adaptDoubleArray(0);
+        }
+        @Override
+        public int[] adaptIntegerArray( int index ) {
+            return value.adaptIntegerArray(0);
+        }
+        @Override
+        public String[] adaptStringArray( int index ) {
+            return value.adaptStringArray(0);
+        }
+        
+        @Override
+        public void writeBinary( int index, int count, ByteBuffer buffer, int offset, int rowBytes, boolean integer ) {
+            // write the value once, then copy its bytes into the other rows.
+            value.writeBinary( 0, 1, buffer, offset, rowBytes, integer );
+            int length= value.binaryLength( integer );
+            byte[] array= buffer.array();
+            int pos= buffer.arrayOffset() + offset;
+            for ( int irec=1; irec<count; irec++ ) {
+                System.arraycopy( array, pos, array, pos + irec*rowBytes, length );
+            }
+        }
+        
+        @Override
+        public int binaryLength( boolean integer ) {
+            return value.binaryLength( integer );
+        }
+        
+        @Override
+        public void reuseBuffers( Adapter old ) {
+            value.reuseBuffers( old instanceof ConstantAdapter ? ((ConstantAdapter)old).value : null );
+        }
     }
     
     private static class DoubleFloatAdapter extends Adapter {
@@ -212,6 +455,14 @@ public class CdfFileRecordIterator  implements Iterator<HapiRecord> {
         public double adaptDouble(int index) {
             return this.array[index];
         }
+        
+        @Override
+        public void writeBinary( int index, int count, ByteBuffer buffer, int offset, int rowBytes, boolean integer ) {
+            for ( int i=index; i<index+count; i++ ) {
+                if ( integer ) buffer.putInt( offset, (int)array[i] ); else buffer.putDouble( offset, array[i] );
+                offset+= rowBytes;
+            }
+        }
     }
     
     private static class IntegerLongAdapter extends Adapter {
@@ -225,6 +476,14 @@ public class CdfFileRecordIterator  implements Iterator<HapiRecord> {
         public int adaptInteger( int index ) {
             return (int)this.array[index];
         }
+        
+        @Override
+        public void writeBinary( int index, int count, ByteBuffer buffer, int offset, int rowBytes, boolean integer ) {
+            for ( int i=index; i<index+count; i++ ) {
+                if ( integer ) buffer.putInt( offset, (int)array[i] ); else buffer.putDouble( offset, array[i] );
+                offset+= rowBytes;
+            }
+        }
     }
     
     private static class IntegerIntegerAdapter extends Adapter {
@@ -238,6 +497,14 @@ public class CdfFileRecordIterator  implements Iterator<HapiRecord> {
         public int adaptInteger( int index ) {
             return this.array[index];
         }
+        
+        @Override
+        public void writeBinary( int index, int count, ByteBuffer buffer, int offset, int rowBytes, boolean integer ) {
+            for ( int i=index; i<index+count; i++ ) {
+                if ( integer ) buffer.putInt( offset, array[i] ); else buffer.putDouble( offset, array[i] );
+                offset+= rowBytes;
+            }
+        }
     }
     
     private static class IntegerShortAdapter extends Adapter {
@@ -251,6 +518,14 @@ public class CdfFileRecordIterator  implements Iterator<HapiRecord> {
         public int adaptInteger( int index ) {
             return this.array[index];
         }
+        
+        @Override
+        public void writeBinary( int index, int count, ByteBuffer buffer, int offset, int rowBytes, boolean integer ) {
+            for ( int i=index; i<index+count; i++ ) {
+                if ( integer ) buffer.putInt( offset, (int)array[i] ); else buffer.putDouble( offset, array[i] );
+                offset+= rowBytes;
+            }
+        }
     }
     private static class IntegerByteAdapter extends Adapter {
         byte[] array;
@@ -263,6 +538,14 @@ public class CdfFileRecordIterator  implements Iterator<HapiRecord> {
         public int adaptInteger( int index ) {
             return this.array[index];
         }
+        
+        @Override
+        public void writeBinary( int index, int count, ByteBuffer buffer, int offset, int rowBytes, boolean integer ) {
+            for ( int i=index; i<index+count; i++ ) {
+                if ( integer ) buffer.putInt( offset, (int)array[i] ); else buffer.putDouble( offset, array[i] );
+                offset+= rowBytes;
+            }
+        }
     }
     
     private static class IntegerArrayIntegerAdapter extends Adapter {
@@ -277,70 +560,65 @@ public class CdfFileRecordIterator  implements Iterator<HapiRecord> {
             return this.array[index];
         }
         
+        @Override
+        public void writeBinary( int index, int count, ByteBuffer buffer, int offset, int rowBytes, boolean integer ) {
+            for ( int i=index; i<index+count; i++ ) {
+                int[] rec= this.array[i];
+                for ( int k=0; k<rec.length; k++ ) {
+                    if ( integer ) buffer.putInt( offset + 4*k, rec[k] ); else buffer.putDouble( offset + 8*k, rec[k] );
+                }
+                offset+= rowBytes;
+            }
+        }
+        
+        @Override
+        public int binaryLength( boolean integer ) {
+            return ( integer ? 4 : 8 ) * ( array.length==0 ? 0 : array[0].length );
+        }
         
     }
     
     private static class IsotimeTT2000Adapter extends Adapter {
-        int julianDay;
-        long cdfTT2000= Long.MAX_VALUE;
-        /**
-         * the time in milliseconds since year 1 for cdfEpoch, or nanoseconds for tt2000.
-         */
-        double baseTime;
-        /**
-         * 1 for tt2000, 1000000 for epoch.
-         */
-        double baseUnitsFactor;
-        String baseYYYYmmddTHH;
         
         long[] array;
         
-        private IsotimeTT2000Adapter( long[] array, int width ) {
+        IsoTimeFormatter formatter;
+        
+        /**
+         * the UTC day and nanoseconds within the day of each time, converted for the block.
+         */
+        long[] epochDays;
+        long[] nanosOfDay;
+        
+        private IsotimeTT2000Adapter( long[] array, int length ) {
             this.array= array;
-            double d= Array.getDouble(array,0);
-            double us2000= new LeapSecondsConverter(false).convert(d);
-            double day2000= Math.floor( us2000 / 86400000000. ); // days since 2000-01-01.
-            double usDay= us2000 - day2000 * 86400000000.; // seconds within this day.
-            double ms1970= day2000 * 86400000. + 946684800000.;
-            String baseDay= TimeUtil.fromMillisecondsSince1970((long)ms1970);
-            baseYYYYmmddTHH= baseDay.substring(0,10)+"T00";
-            baseTime= (long)(d-usDay*1000);
-        }
-        
-        private String formatTime( double t ) {
-            long offset= (long)((t-baseTime));  // This must not cross a leap second, will always be in nanos
-            while ( offset<0 ) {
-                try {
-                    offset= offset+3600000000000L;
-                    int[] base= TimeUtil.parseISO8601Time(baseYYYYmmddTHH);
-                    base[3]=base[3]-1;
-                    base= TimeUtil.subtract( base, new int[] { 0, 0, 0, 1, 0, 0, 0 } );
-                    String sbase= TimeUtil.formatIso8601Time(base);
-                    baseYYYYmmddTHH= sbase.substring(0,13);
-                } catch (ParseException ex) {
-                    Logger.getLogger(CdfFileRecordIterator.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
-            while ( offset>=3600000000000L ) {
-                double hours= offset / 3600000000000L;
-                baseTime = baseTime + hours * 3600000000000L;
-                int hour= Integer.parseInt(baseYYYYmmddTHH.substring(11,13));
-                baseYYYYmmddTHH= baseYYYYmmddTHH.substring(0,11)+String.format("%02d",(int)(hour+hours));
-                baseYYYYmmddTHH= TimeUtil.normalizeTimeString(baseYYYYmmddTHH).substring(0,13);
-                offset= (long)((t-baseTime));
-            }
-            int nanos= (int)( (offset) % 1000000000. );
-            offset= offset / 1000000000; // now it's in seconds
-            int seconds= (int)(offset % 60);
-            int minutes= (int)(offset / 60); // now it's in minutes
-            return baseYYYYmmddTHH + String.format( ":%02d:%02d.%09dZ", minutes, seconds, nanos );        
-        }        
+            this.formatter= new IsoTimeFormatter(length);
+            this.epochDays= new long[array.length];
+            this.nanosOfDay= new long[array.length];
+            TT2000Converter.toUtc( array, 0, array.length, epochDays, nanosOfDay );
+        }
         
         @Override
         public String adaptString(int index) {
-            return formatTime( array[index] );
+            return formatter.format( epochDays[index], nanosOfDay[index] );
+        }
+        
+        @Override
+        public void writeBinary( int index, int count, ByteBuffer buffer, int offset, int rowBytes, boolean integer ) {
+            byte[] dest= buffer.array();
+            int pos= buffer.arrayOffset() + offset;
+            for ( int i=index; i<index+count; i++ ) {
+                formatter.format( epochDays[i], nanosOfDay[i], dest, pos );
+                pos+= rowBytes;
+            }
+        }
+        
+        @Override
+        public int binaryLength( boolean integer ) {
+            return formatter.getLength();
         }
         
+        @Override
         public long adaptLong(int index) {
             return array[index];
         }
@@ -464,203 +742,653 @@ public class CdfFileRecordIterator  implements Iterator<HapiRecord> {
         return flattenedArray;
     }
     
-    private double[][] flattenDoubleArray( Object array ) {
-        int numDimensions = 1;
-        Class<?> componentType = array.getClass().getComponentType();
-        while (componentType != double.class) {
-            numDimensions++;
-            componentType = componentType.getComponentType();
+    /**
+     * milliseconds from 0000-01-01T00:00Z, the origin of CDF_EPOCH, to 1970-01-01T00:00Z.
+     */
+    private static final long MILLIS_0000_TO_1970= 62167219200000L;
+    
+    /**
+     * return the time in the units of adaptLong for the type of the time variable, which is
+     * TT2000 nanoseconds, Epoch microseconds, or Epoch16 nanoseconds since 1970.
+     * @param time the seven-component time
+     * @param type the CDF type of the time variable, 31 (Epoch), 32 (Epoch16) or 33 (TT2000).
+     * @return the time
+     */
+    private static long toTimeLong( int[] time, int type ) {
+        long nanos1970= Util.toNanosecondsSince1970(time);
+        if ( type==31 ) {
+            return Math.floorDiv( nanos1970, 1000 ) + MILLIS_0000_TO_1970 * 1000;
+        } else if ( type==32 ) {
+            return nanos1970;
+        } else {
+            return TT2000Converter.fromUtc( nanos1970 );
         }
-        switch (numDimensions) {
-            case 2:
-                return (double[][])array;
-            case 3:
-                return flatten((double[][][])array);
-            case 4:
-                return flatten((double[][][][])array);
-            default:
-                throw new IllegalArgumentException("Not supported: rank>4");
+    }
+    
+    /**
+     * return the time of one record of the time variable, read by itself.
+     * @param irec the record number
+     * @return the time, in the units of adaptLong
+     */
+    private long readTimeLong( int irec ) throws CDFException.ReaderError {
+        Object o= reader.getRange( params[0], irec, irec );
+        if ( o instanceof long[] ) {
+            return ((long[])o)[0];
+        } else if ( o instanceof double[][] ) {
+            return IsotimeEpoch16Adapter.toLong( ((double[][])o)[0] );
+        } else {
+            return Math.round( ((double[])o)[0] * 1000 );
+        }
+    }
+    
+    /**
+     * return the index of the first record of the time variable which is not before t.  This
+     * is a binary search which reads one record of the time variable at each step, so that the
+     * time variable is not read in full.
+     * @param low the first record to search
+     * @param high the last record to search, exclusive.
+     * @param t the time, in the units of adaptLong
+     * @return the index, or high if all the times are before t.
+     */
+    private int lowerBound( int low, int high, long t ) throws CDFException.ReaderError {
+        if ( low<high && readTimeLong(low)>=t ) {
+            return low;
         }
+        if ( low<high && readTimeLong(high-1)<t ) {
+            return high;
+        }
+        while ( low<high ) {
+            int mid= ( low + high ) >>> 1;
+            if ( readTimeLong(mid)<t ) low= mid+1; else high= mid;
+        }
+        return low;
     }
     
+    /**
+     * create the iterator over the records of a CDF file, using a reader from the 
+     * CdfReaderCache, which is returned to the cache when the last record is read.
+     * @param info the info response for the dataset
+     * @param start the seven-component start time, or null for the beginning of the file.
+     * @param stop the seven-component stop time (exclusive), or null for the end of the file.
+     * @param params the parameters, with the time tag first.
+     * @param tmpFile the CDF file
+     * @throws CDFException.ReaderError 
+     */
     public CdfFileRecordIterator( JSONObject info, int[] start, int[] stop, String[] params, File tmpFile ) throws CDFException.ReaderError {
-         
+        this( info, start, stop, params, CdfReaderCache.getInstance().acquire(tmpFile) );
+    }
+    
+    private CdfFileRecordIterator( JSONObject info, int[] start, int[] stop, String[] params, CdfReaderCache.Handle handle ) throws CDFException.ReaderError {
+        this( info, start, stop, params, handle.getReader(), handle );
+        if ( index>=nindex ) {
+            close();
+        }
+    }
+    
+    /**
+     * the records are read in blocks of about this many bytes, so that memory does not depend
+     * on the size of the file.  This is set with the system property esdc.cdf.blockBytes.
+     */
+    private static final long BLOCK_BYTES= Long.parseLong( System.getProperty( "esdc.cdf.blockBytes", "16000000" ) );
+    
+    private final CDFReader reader;
+    
+    /**
+     * the handle of the reader when it is borrowed from the CdfReaderCache, or null.
+     */
+    private CdfReaderCache.Handle handle;
+    
+    private final String[] params;
+    private final int timeType;
+    
+    /**
+     * the length of the isotime strings.
+     */
+    private final int timeLength;
+    
+    /**
+     * the records in each block.
+     */
+    private final int blockRecords;
+    
+    /**
+     * the record number of the first record in the current block, and of the record after
+     * the block.  The adapters are indexed relative to blockStart.
+     */
+    private int blockStart;
+    private int blockEnd;
+    
+    /**
+     * the adapters for variables which do not vary with record, or null.
+     */
+    private final Adapter[] constants;
+    
+    /**
+     * when true, next returns the same record each time, moved to the next record, and the
+     * integer arrays are reused.  This is set with the system property esdc.cdf.cursor.
+     */
+    private boolean cursorMode= Boolean.parseBoolean( System.getProperty( "esdc.cdf.cursor", "false" ) );
+    
+    private Record cursor;
+    
+    /**
+     * true where the parameter is an integer in the info, so it is written as int32 in
+     * HAPI binary, and false where it is a double.
+     */
+    private final boolean[] integerColumns;
+    
+    /**
+     * the identity of the file in the DecodedVariableCache, or null if the cache is not used.
+     */
+    private String cacheKey;
+    
+    /**
+     * create the iterator over the records of a CDF which is already open, for example one
+     * read from memory.  The time variable is searched for the records within the interval,
+     * and the variables are read in blocks of records (esdc.cdf.blockBytes) as the iterator
+     * proceeds, so only one or two blocks are in memory at a time.
+     * @param info the info response for the dataset
+     * @param start the seven-component start time, or null for the beginning of the file.
+     * @param stop the seven-component stop time (exclusive), or null for the end of the file.
+     * @param params the parameters, with the time tag first.
+     * @param reader the CDF reader
+     * @throws CDFException.ReaderError 
+     */
+    public CdfFileRecordIterator( JSONObject info, int[] start, int[] stop, String[] params, CDFReader reader ) throws CDFException.ReaderError {
+        this( info, start, stop, params, reader, null );
+    }
+    
+    /**
+     * create the iterator, releasing the handle if the file cannot be read.
+     * @param info the info response for the dataset
+     * @param start the seven-component start time, or null for the beginning of the file.
+     * @param stop the seven-component stop time (exclusive), or null for the end of the file.
+     * @param params the parameters, with the time tag first.
+     * @param reader the CDF reader
+     * @param handle the handle of the reader when it is borrowed from the CdfReaderCache, or null.
+     * @throws CDFException.ReaderError 
+     */
+    private CdfFileRecordIterator( JSONObject info, int[] start, int[] stop, String[] params, CDFReader reader, CdfReaderCache.Handle handle ) throws CDFException.ReaderError {
+        
+        this.reader= reader;
+        this.handle= handle;
         try {
-            adapters= new Adapter[params.length];
-            
-            int nrec=-1;
-            
-            CDFReader reader= new CDFReader(tmpFile.toString());
-            for ( int i=0; i<params.length; i++ ) {
-                if ( i==0 ) {
-                    int length= 24;
-                    try {
-                        if ( info!=null ) {
-                            JSONArray pp = info.getJSONArray("parameters");
-                            length= pp.getJSONObject(0).getInt("length");
-                        }
-                    } catch ( JSONException ex ) {
-                        logger.warning("There should always be a length on parameters[0]");
-                    }
-                    String dep0=params[0]; //TODO: Huh??? Rewrite this so that it's clear.  Need definition on "params"
-                    int type= reader.getType(dep0); // 31=Epoch
-                    Object o= reader.get(dep0);
-                    nrec= Array.getLength(o);
-                    if ( nrec>0 ) {
-                        switch (type) {
-                            case 31:                                
-                                adapters[i]= new IsotimeEpochAdapter( (double[])o, length );
-                                break;
-                            case 33:
-                                adapters[i]= new IsotimeTT2000Adapter( (long[])o, length );
-                                break;
-                            default:
-                                //TODO: epoch16.
-                                throw new IllegalArgumentException("type not supported for column 0 time (cdf_epoch16");
+            this.params= params;
+            this.constants= new Adapter[params.length];
+        
+            int length= 24;
+            this.integerColumns= new boolean[params.length];
+            try {
+                if ( info!=null ) {
+                    JSONArray pp = info.getJSONArray("parameters");
+                    length= pp.getJSONObject(0).getInt("length");
+                    for ( int j=1; j<pp.length(); j++ ) {
+                        JSONObject p= pp.getJSONObject(j);
+                        if ( p.optString("type").equals("integer") ) {
+                            for ( int i=1; i<params.length; i++ ) {
+                                if ( params[i].equals( p.optString("name") ) ) integerColumns[i]= true;
+                            }
                         }
-                        nindex= Array.getLength(o);
-                    } else {
-                        nindex=0;
                     }
-                    
+                }
+            } catch ( JSONException ex ) {
+                logger.warning("There should always be a length on parameters[0]");
+            }
+            this.timeLength= length;
+        
+            String dep0=params[0]; //TODO: Huh??? Rewrite this so that it's clear.  Need definition on "params"
+            this.timeType= reader.getType(dep0); // 31=Epoch
+        
+            int first= 0;
+            int last= reader.getNumberOfValues(dep0);
+            if ( last>0 ) {
+                if ( timeType!=31 && timeType!=32 && timeType!=33 ) {
+                    throw new IllegalArgumentException("type not supported for column 0 time: "+nameForType(timeType));
+                }
+                if ( start!=null ) {
+                    first= lowerBound( 0, last, toTimeLong( start, timeType ) );
+                }
+                if ( stop!=null ) {
+                    last= lowerBound( first, last, toTimeLong( stop, timeType ) );
+                }
+            }
+        
+            long recordBytes= 8;
+            for ( int i=1; i<params.length; i++ ) {
+                String param= params[i];
+                if ( !reader.recordVariance(param) || reader.getNumberOfValues(param)==1 ) {
+                    // let's assume they meant for this to non-time varying.
+                    constants[i]= new ConstantAdapter( readAdapter( param, 0, 0 ) );
                 } else {
-                    String param= params[i];
-                    int type= reader.getType(param);
-                    Object o= reader.get(param);
-                    if ( Array.getLength(o)!=nrec ) {
-                        if ( Array.getLength(o)==1 ) {
-                            // let's assume they meant for this to non-time varying.
-                            Object newO= Array.newInstance( o.getClass().getComponentType(), nrec );
-                            Object v1= Array.get( o, 0 );
-                            for ( int irec=0; irec<nrec; irec++ ) {
-                                Array.set( newO, irec, v1 );
-                            }
-                            o= newO;
-                        } else {
-                            throw new IllegalArgumentException("nrec is inconsistent!  This internal error must be fixed.");
-                        }
+                    if ( reader.getNumberOfValues(param)<last ) {
+                        throw new IllegalArgumentException("nrec is inconsistent!  This internal error must be fixed.");
                     }
-                    String stype= nameForType(type);
-                    Class c= o.getClass().getComponentType();
-                    if ( !c.isArray() ) {
-                        if ( c==double.class ) {
-                            adapters[i]= new DoubleDoubleAdapter( (double[])o );
-                        } else if ( c==float.class ) {
-                            adapters[i]= new DoubleFloatAdapter( (float[])o );
-                        } else if ( c==int.class ) {
-                            adapters[i]= new IntegerIntegerAdapter( (int[])o );
-                        } else if ( c==short.class ) {
-                            adapters[i]= new IntegerShortAdapter( (short[])o );
-                        } else if ( c==byte.class ) {
-                            adapters[i]= new IntegerByteAdapter( (byte[])o );
-                        } else if ( c==long.class ) {
-                            adapters[i]= new IntegerLongAdapter( (long[])o );
-                        } else if ( stype.equals("CDF_UINT2") ) {
-                            adapters[i]= new IntegerIntegerAdapter( (int[])o );
-                        } else if ( stype.equals("CDF_UINT1") ) {
-                            adapters[i]= new IntegerShortAdapter( (short[])o );                        
-                        } else {
-                            throw new IllegalArgumentException("unsupported type");
-                        }
-                    } else {
-                        c= c.getComponentType();
-                        if ( c==double.class ) {
-                            adapters[i]= new DoubleArrayDoubleAdapter( (double[][])o );
-                        } else if ( c==int.class ) {
-                            adapters[i]= new IntegerArrayIntegerAdapter( (int[][])o );
-                        } else if ( c.isArray()  ) {
-                            o= flattenDoubleArray(o);
-                            adapters[i]= new DoubleArrayDoubleAdapter( (double[][])o );
-                        } else {
-                            throw new IllegalArgumentException("unsupported type");
-                        }
+                    long n= 8;
+                    for ( int d: reader.getDimensions(param) ) {
+                        n*= d;
                     }
+                    recordBytes+= n;
                 }
             }
+            this.blockRecords= (int)Math.max( 1, Math.min( Integer.MAX_VALUE, BLOCK_BYTES / recordBytes ) );
+        
+            index= first;
+            nindex= last;
+            blockStart= first;
+            blockEnd= first;
+            logger.log(Level.FINER, "reading records {0} to {1} in blocks of {2}", new Object[] { first, last, blockRecords } );
+        } catch ( CDFException.ReaderError | RuntimeException ex ) {
+            if ( handle!=null ) {
+                handle.release();
+            }
+            throw ex;
+        }
+        
+        logger.exiting( CdfFileRecordIterator.class.getCanonicalName(), "constructor" );
+
+    }
+    
+    /**
+     * read the block of records starting at the record, replacing the adapters.  Records
+     * already returned keep the adapters of their block.
+     * @param irec the first record of the block.
+     */
+    private void readBlock( int irec ) {
+        try {
+            int end= (int)Math.min( nindex, (long)irec + blockRecords );
+            Adapter[] newAdapters= new Adapter[params.length];
+            
+            Object o= cacheKey!=null && timeType!=32 ? readCached( params[0], irec, end-1, 1, false ) 
+                : reader.getRange( params[0], irec, end-1 );
+            switch (timeType) {
+                case 31:                                
+                    newAdapters[0]= new IsotimeEpochAdapter( (double[])o, timeLength );
+                    break;
+                case 32:
+                    newAdapters[0]= new IsotimeEpoch16Adapter( (double[][])o, timeLength );
+                    break;
+                case 33:
+                    newAdapters[0]= new IsotimeTT2000Adapter( (long[])o, timeLength );
+                    break;
+                default:
+                    throw new IllegalArgumentException("type not supported for column 0 time: "+nameForType(timeType));
+            }
             
-            logger.log(Level.FINER, "calculated adapters" );
+            for ( int i=1; i<params.length; i++ ) {
+                if ( constants[i]!=null ) {
+                    newAdapters[i]= constants[i];
+                } else {
+                    newAdapters[i]= readAdapter( params[i], irec, end-1 );
+                }
+                if ( cursorMode ) {
+                    newAdapters[i].reuseBuffers( adapters==null ? null : adapters[i] );
+                }
+            }
             
-            index= 0;
-            logger.exiting( CdfFileRecordIterator.class.getCanonicalName(), "constructor" );
+            adapters= newAdapters;
+            blockStart= irec;
+            blockEnd= end;
+            logger.log(Level.FINER, "read records {0} to {1}", new Object[] { irec, end } );
             
         } catch ( CDFException.ReaderError ex ) {
             throw new RuntimeException(ex);
         }
+    }
+    
+    /**
+     * read the records of a variable and return the adapter for them.  Variables of two or
+     * more dimensions are read into one array, see FlatDoubleArrayAdapter.
+     * @param param the variable name
+     * @param first the first record
+     * @param last the last record, inclusive.
+     * @return the adapter
+     */
+    private Adapter readAdapter( String param, int first, int last ) throws CDFException.ReaderError {
+        int[] dims= reader.getDimensions(param);
+        int n= 1;
+        for ( int d: dims ) {
+            n*= d;
+        }
+        if ( cacheKey!=null ) {
+            // the cache keeps arrays with the values of each record in turn.
+            Object o= readCached( param, first, last, n, dims.length>0 );
+            if ( dims.length>0 ) {
+                return new FlatDoubleArrayAdapter( (double[])o, n );
+            } else {
+                return getAdapter( o, reader.getType(param) );
+            }
+        } else if ( dims.length>1 ) {
+            return new FlatDoubleArrayAdapter( reader.getRangeOneD( param, first, last, false ), n );
+        } else {
+            return getAdapter( reader.getRange( param, first, last ), reader.getType(param) );
+        }
+    }
+    
+    /**
+     * read the records of a variable through the DecodedVariableCache, a chunk at a time, 
+     * decoding only the chunks which are not already in the cache.
+     * @param param the variable name
+     * @param first the first record
+     * @param last the last record, inclusive.
+     * @param n the number of values in each record
+     * @param flat true if the variable has dimensions, so it is read as doubles with getRangeOneD.
+     * @return the values, an array like double[] with the n values of each record in turn.
+     */
+    private Object readCached( String param, int first, int last, int n, boolean flat ) throws CDFException.ReaderError {
+        DecodedVariableCache cache= DecodedVariableCache.getInstance();
+        int nrec= reader.getNumberOfValues(param);
+        int chunk= cache.getChunkRecords( n * 8 );
+        Object result= null;
+        for ( int c0= first - first % chunk; c0<=last; c0+= chunk ) {
+            int c1= (int)Math.min( nrec, (long)c0 + chunk ) - 1;
+            int from= Math.max( first, c0 );
+            int to= Math.min( last, c1 );
+            DecodedVariableCache.Column column= cache.acquire( cacheKey, param, c0, c1 );
+            try {
+                Object values= null;
+                if ( column==null ) {
+                    values= flat ? reader.getRangeOneD( param, c0, c1, false ) : reader.getRange( param, c0, c1 );
+                    column= cache.put( cacheKey, param, c0, c1, values );
+                }
+                if ( result==null ) {
+                    Class<?> c= column!=null ? column.getComponentType() : values.getClass().getComponentType();
+                    result= Array.newInstance( c, ( last - first + 1 ) * n );
+                }
+                if ( column!=null ) {
+                    column.copyTo( ( from - c0 ) * n, result, ( from - first ) * n, ( to - from + 1 ) * n );
+                } else {
+                    System.arraycopy( values, ( from - c0 ) * n, result, ( from - first ) * n, ( to - from + 1 ) * n );
+                }
+            } finally {
+                cache.release( column );
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * return the adapter for the values of a variable.
+     * @param o the values, one element per record.
+     * @param type the CDF type of the variable.
+     * @return the adapter
+     */
+    private Adapter getAdapter( Object o, int type ) {
+        String stype= nameForType(type);
+        Class c= o.getClass().getComponentType();
+        if ( !c.isArray() ) {
+            if ( c==double.class ) {
+                return new DoubleDoubleAdapter( (double[])o );
+            } else if ( c==float.class ) {
+                return new DoubleFloatAdapter( (float[])o );
+            } else if ( c==int.class ) {
+                return new IntegerIntegerAdapter( (int[])o );
+            } else if ( c==short.class ) {
+                return new IntegerShortAdapter( (short[])o );
+            } else if ( c==byte.class ) {
+                return new IntegerByteAdapter( (byte[])o );
+            } else if ( c==long.class ) {
+                return new IntegerLongAdapter( (long[])o );
+            } else if ( stype.equals("CDF_UINT2") ) {
+                return new IntegerIntegerAdapter( (int[])o );
+            } else if ( stype.equals("CDF_UINT1") ) {
+                return new IntegerShortAdapter( (short[])o );                        
+            } else {
+                throw new IllegalArgumentException("unsupported type");
+            }
+        } else {
+            c= c.getComponentType();
+            if ( c==double.class ) {
+                return new DoubleArrayDoubleAdapter( (double[][])o );
+            } else if ( c==int.class ) {
+                return new IntegerArrayIntegerAdapter( (int[][])o );
+            } else {
+                throw new IllegalArgumentException("unsupported type");
+            }
+        }
+    }
+    
+    /**
+     * return the time of the record, reading the block containing it when needed.
+     * @param irec the record number
+     * @return the time, in the units of adaptLong
+     */
+    private long getTimeLong( int irec ) {
+        if ( irec<blockStart || irec>=blockEnd ) {
+            readBlock( irec );
+        }
+        return adapters[0].adaptLong( irec-blockStart );
+    }
 
+    /**
+     * read the variables through the DecodedVariableCache, so that records decoded for other
+     * requests are used.  This does nothing when the cache is turned off.
+     * @param cacheKey the identity of the file, which must change when the file changes, 
+     *    such as its path and version.
+     */
+    void setCacheKey( String cacheKey ) {
+        this.cacheKey= DecodedVariableCache.getInstance()==null ? null : cacheKey;
+    }
+
+    /**
+     * turn on or off cursor mode, where next returns the same record each time, moved to the
+     * next record, and no objects are created for each record (except for the time strings).
+     * The record returned by next is then valid only until next is called again, so this 
+     * can only be used when each record is formatted before the next is read.
+     * @param cursorMode true to reuse the record.
+     */
+    public void setCursorMode( boolean cursorMode ) {
+        this.cursorMode= cursorMode;
     }
 
     @Override
     public boolean hasNext() {
         return index<nindex;
     }
+    
+    /**
+     * return the reader to the CdfReaderCache, when it was borrowed from the cache.  This is
+     * done when the last record is read, and should be done when the iterator is abandoned.
+     * The iterator has no more records after this.
+     */
+    void close() {
+        nindex= Math.min( index, nindex );
+        if ( handle!=null ) {
+            handle.release();
+            handle= null;
+        }
+    }
+    
+    /**
+     * skip over the next record without returning it.
+     */
+    void skip() {
+        long thisTimeLong= getTimeLong(index);
+        index++;
+        while ( index<nindex && getTimeLong(index)<=thisTimeLong ) {
+            index++;
+        }
+        if ( index>=nindex ) {
+            close();
+        }
+    }
+    
+    /**
+     * return the time of the record which next will return, as a number which increases with
+     * time, so records can be ordered without formatting their times.  This is nanoseconds 
+     * (TT2000 or Epoch16) or microseconds (Epoch), with different origins, so it is only 
+     * compared with times from files of the same dataset.
+     * @return the time of the next record
+     */
+    long peekTime() {
+        return getTimeLong(index);
+    }
+
+    /**
+     * return the record number of the record after the current block.
+     * @return the record number
+     */
+    int getBlockEnd() {
+        return blockEnd;
+    }
+
+    /**
+     * write the next records as HAPI binary rows into the buffer, going from the arrays read
+     * from the file straight into the buffer, a column at a time, without a HapiRecord for 
+     * each record.  Records are written while they fit in the buffer, are in the current block,
+     * and are not after untilTime, and repeated records are skipped as in next.
+     * @param buffer the little-endian buffer, backed by an array, written from its position.
+     * @param untilTime the time of the last record which may be written, in the units of peekTime.
+     * @return the number of records written, which is zero when no row fits in the buffer.
+     */
+    int writeBinary( ByteBuffer buffer, long untilTime ) {
+        long t= getTimeLong(index);
+        final Adapter[] adapters= this.adapters;
+        int rowBytes= 0;
+        for ( int i=0; i<adapters.length; i++ ) {
+            rowBytes+= adapters[i].binaryLength( integerColumns[i] );
+        }
+        int end= (int)Math.min( blockEnd, index + (long)( buffer.remaining() / rowBytes ) );
+        if ( index>=end || t>untilTime ) {
+            return 0;
+        }
+        final int j= index-blockStart;
+        
+        // find the run of records which are increasing in time.
+        Adapter time= adapters[0];
+        int k= j+1;
+        int kend= end-blockStart;
+        while ( k<kend ) {
+            long tk= time.adaptLong(k);
+            if ( tk<=t || tk>untilTime ) break;
+            t= tk;
+            k++;
+        }
+        int count= k-j;
+        
+        int offset= buffer.position();
+        for ( int i=0; i<adapters.length; i++ ) {
+            adapters[i].writeBinary( j, count, buffer, offset, rowBytes, integerColumns[i] );
+            offset+= adapters[i].binaryLength( integerColumns[i] );
+        }
+        buffer.position( buffer.position() + count*rowBytes );
+        
+        index+= count;
+        lastWrittenTime= t;
+        while ( index<nindex && getTimeLong(index)<=t ) {
+            index++;
+        }
+        if ( index>=nindex ) {
+            close();
+        }
+        return count;
+    }
+    
+    private long lastWrittenTime;
+    
+    /**
+     * return the time of the last record written by writeBinary.
+     * @return the time, in the units of peekTime.
+     */
+    long getLastWrittenTime() {
+        return lastWrittenTime;
+    }
 
     @Override
     public HapiRecord next() {
-        final int j= index;
-        
-        long thisTimeLong= adapters[0].adaptLong(j);
+        long thisTimeLong= getTimeLong(index);
+        final Adapter[] adapters= this.adapters; // the next block may replace these.
+        final int j= index-blockStart;
         //String thisTime= adapters[0].adaptString(j);
         index++;
         
         // there are some repeated records, and HAPI does not allow this.
-        while ( index<nindex && adapters[0].adaptLong(index)<=thisTimeLong ) {
+        while ( index<nindex && getTimeLong(index)<=thisTimeLong ) {
             index++;
         }
+        if ( index>=nindex ) {
+            close();
+        }
 
-        return new HapiRecord() {
-            @Override
-            public String getIsoTime(int i) {
-                return adapters[i].adaptString(j);
+        if ( cursorMode ) {
+            if ( cursor==null ) {
+                cursor= new Record( adapters, j );
+            } else {
+                cursor.adapters= adapters;
+                cursor.j= j;
             }
+            return cursor;
+        } else {
+            return new Record( adapters, j );
+        }
+    }
+    
+    /**
+     * the record at index j of the adapters.
+     */
+    private static final class Record implements HapiRecord {
+        
+        private Adapter[] adapters;
+        private int j;
+        
+        private Record( Adapter[] adapters, int j ) {
+            this.adapters= adapters;
+            this.j= j;
+        }
+        
+        @Override
+        public String getIsoTime(int i) {
+            return adapters[i].adaptString(j);
+        }
 
-            @Override
-            public String[] getIsoTimeArray(int i) {
-                return null;
-            }
+        @Override
+        public String[] getIsoTimeArray(int i) {
+            return null;
+        }
 
-            @Override
-            public String getString(int i) {
-                return adapters[i].adaptString(j);
-            }
+        @Override
+        public String getString(int i) {
+            return adapters[i].adaptString(j);
+        }
 
-            @Override
-            public String[] getStringArray(int i) {
-                return null;
-            }
+        @Override
+        public String[] getStringArray(int i) {
+            return null;
+        }
 
-            @Override
-            public double getDouble(int i) {
-                return adapters[i].adaptDouble(j);
-            }
+        @Override
+        public double getDouble(int i) {
+            return adapters[i].adaptDouble(j);
+        }
 
-            @Override
-            public double[] getDoubleArray(int i) {
-                return adapters[i].adaptDoubleArray(j);
-            }
+        @Override
+        public double[] getDoubleArray(int i) {
+            return adapters[i].adaptDoubleArray(j);
+        }
 
-            @Override
-            public int getInteger(int i) {
-                return adapters[i].adaptInteger(i);
-            }
+        @Override
+        public int getInteger(int i) {
+            return adapters[i].adaptInteger(j);
+        }
 
-            @Override
-            public int[] getIntegerArray(int i) {
-                return adapters[i].adaptIntegerArray(j);
-            }
+        @Override
+        public int[] getIntegerArray(int i) {
+            return adapters[i].adaptIntegerArray(j);
+        }
 
-            @Override
-            public String getAsString(int i) {
-                return null;
-            }
+        @Override
+        public String getAsString(int i) {
+            return null;
+        }
 
-            @Override
-            public int length() {
-                return adapters.length;
-            }
-            public String toString() {
-                return adapters[0].adaptString(j) + " length="+length();
-            }
-        };
+        @Override
+        public int length() {
+            return adapters.length;
+        }
+        
+        @Override
+        public String toString() {
+            return adapters[0].adaptString(j) + " length="+length();
+        }
     }
     
 }
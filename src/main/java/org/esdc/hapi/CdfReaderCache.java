@@ -0,0 +1,245 @@
+package org.esdc.hapi;
+
+import gov.nasa.gsfc.spdf.cdfj.CDFException;
+import gov.nasa.gsfc.spdf.cdfj.CDFReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps CDF readers open, so that reading a file which was read recently does not parse its
+ * descriptor records and map it again.  A reader is lent to one user at a time, since the
+ * CDFJ library does not say its readers can be used by several threads, and it is returned
+ * to the cache with Handle.release.  The readers of each file are counted, idle and in use,
+ * and when CdfFileCache removes or replaces a file its readers are dropped, with those in use
+ * dropped as they are released, so they are never used for the new file.  A file which
+ * changes on disk is also noticed by its length and modification time.  The number of idle
+ * readers is limited by the system property esdc.readers.maxIdle.
+ * @author jbf
+ */
+final class CdfReaderCache {
+
+    private static final Logger logger= Logger.getLogger("hapi.esdc");
+
+    private static CdfReaderCache instance;
+
+    /**
+     * return the cache used by all the record sources in this process.
+     * @return the cache
+     */
+    static synchronized CdfReaderCache getInstance() {
+        if ( instance==null ) {
+            int maxIdle= Integer.parseInt( System.getProperty( "esdc.readers.maxIdle", "32" ) );
+            instance= new CdfReaderCache( maxIdle );
+        }
+        return instance;
+    }
+
+    /**
+     * the readers of one file.
+     */
+    private static class Entry {
+        final String key;
+        final long length;
+        final long lastModified;
+        final ArrayDeque<CDFReader> idle= new ArrayDeque<>();
+        /**
+         * the number of readers lent out.
+         */
+        int inUse;
+        /**
+         * true when the file was removed or replaced, so readers are not returned to the entry.
+         */
+        boolean invalid;
+
+        private Entry( String key, long length, long lastModified ) {
+            this.key= key;
+            this.length= length;
+            this.lastModified= lastModified;
+        }
+    }
+
+    /**
+     * a reader lent out by the cache.
+     */
+    static final class Handle {
+        private final CdfReaderCache cache;
+        private final Entry entry;
+        private final CDFReader reader;
+        private boolean released;
+
+        private Handle( CdfReaderCache cache, Entry entry, CDFReader reader ) {
+            this.cache= cache;
+            this.entry= entry;
+            this.reader= reader;
+        }
+
+        /**
+         * return the reader, which must not be used after release.
+         * @return the reader
+         */
+        CDFReader getReader() {
+            return reader;
+        }
+
+        /**
+         * return the reader to the cache.  This may be called more than once.
+         */
+        void release() {
+            cache.release( this );
+        }
+    }
+
+    private final LinkedHashMap<String,Entry> entries= new LinkedHashMap<>(16,0.75f,true);
+
+    private final int maxIdle;
+
+    private int idleCount;
+
+    private long hitCount;
+    private long openCount;
+
+    CdfReaderCache( int maxIdle ) {
+        this.maxIdle= maxIdle;
+    }
+
+    private static String getKey( File file ) {
+        try {
+            return file.getCanonicalPath();
+        } catch ( IOException ex ) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    /**
+     * borrow a reader for the file, opening one if none is idle.
+     * @param file the CDF file
+     * @return the handle, which must be released when the reader is no longer used.
+     * @throws CDFException.ReaderError when the file cannot be read.
+     */
+    Handle acquire( File file ) throws CDFException.ReaderError {
+        String key= getKey(file);
+        long length= file.length();
+        long lastModified= file.lastModified();
+        Entry entry;
+        synchronized (this) {
+            entry= entries.get(key);
+            if ( entry!=null && ( entry.length!=length || entry.lastModified!=lastModified ) ) {
+                logger.log(Level.FINE, "file has changed: {0}", key );
+                invalidate( entry );
+                entry= null;
+            }
+            if ( entry==null ) {
+                entry= new Entry( key, length, lastModified );
+                entries.put( key, entry );
+            }
+            entry.inUse++;
+            CDFReader reader= entry.idle.poll();
+            if ( reader!=null ) {
+                idleCount--;
+                hitCount++;
+                return new Handle( this, entry, reader );
+            }
+            openCount++;
+        }
+        try {
+            return new Handle( this, entry, new CDFReader( file.toString() ) );
+        } catch ( CDFException.ReaderError | RuntimeException ex ) {
+            synchronized (this) {
+                entry.inUse--;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * return the reader to the idle readers of its file, unless the file was removed or
+     * replaced since it was borrowed.
+     * @param handle the handle
+     */
+    synchronized void release( Handle handle ) {
+        if ( handle.released ) {
+            return;
+        }
+        handle.released= true;
+        Entry entry= handle.entry;
+        entry.inUse--;
+        if ( !entry.invalid ) {
+            entry.idle.push( handle.reader );
+            idleCount++;
+            trim();
+        }
+    }
+
+    /**
+     * drop the readers of the file, because it is removed or replaced.  Readers in use are
+     * not affected, but they are dropped when they are released.
+     * @param file the CDF file
+     */
+    synchronized void invalidate( File file ) {
+        Entry entry= entries.get( getKey(file) );
+        if ( entry!=null ) {
+            invalidate( entry );
+        }
+    }
+
+    private void invalidate( Entry entry ) {
+        entry.invalid= true;
+        idleCount-= entry.idle.size();
+        entry.idle.clear();
+        entries.remove( entry.key );
+    }
+
+    /**
+     * drop the idle readers of the least recently used files until there are at most maxIdle.
+     */
+    private void trim() {
+        Iterator<Entry> iter= entries.values().iterator();
+        while ( idleCount>maxIdle && iter.hasNext() ) {
+            Entry entry= iter.next();
+            while ( idleCount>maxIdle && !entry.idle.isEmpty() ) {
+                entry.idle.removeLast();
+                idleCount--;
+            }
+            if ( entry.idle.isEmpty() && entry.inUse==0 ) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * return the number of times an idle reader was used.
+     * @return the number of hits
+     */
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * return the number of readers opened.
+     * @return the number of readers opened
+     */
+    synchronized long getOpenCount() {
+        return openCount;
+    }
+
+    /**
+     * return the number of readers lent out for the file.
+     * @param file the CDF file
+     * @return the number of readers in use
+     */
+    synchronized int getInUseCount( File file ) {
+        Entry entry= entries.get( getKey(file) );
+        return entry==null ? 0 : entry.inUse;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format( "CdfReaderCache: %d files, %d idle readers of %d, hits=%d opens=%d",
+            entries.size(), idleCount, maxIdle, hitCount, openCount );
+    }
+}
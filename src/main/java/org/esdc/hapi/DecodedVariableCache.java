@@ -0,0 +1,301 @@
+package org.esdc.hapi;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the decoded values of CDF variables, so that requests for the same file and variables
+ * from different users decode them once.  The values are kept in chunks of records, on a grid
+ * of record numbers which depends only on the size of the variable's records, so requests
+ * for different intervals or with different parameters find the same chunks.  The chunks are
+ * kept in direct buffers outside of the Java heap, so a large cache does not slow garbage
+ * collection, and the least recently used chunks are removed to keep within a byte budget.
+ * A chunk is pinned while a reader copies from it, and pinned chunks are not removed.
+ * @author jbf
+ */
+final class DecodedVariableCache {
+
+    private static final Logger logger= Logger.getLogger("hapi.esdc");
+
+    private static DecodedVariableCache instance;
+
+    /**
+     * return the cache used by all the record sources in this process, or null if the cache
+     * is turned off.  The budget is set with the system property esdc.decoded.maxBytes, where
+     * 0 turns the cache off, and the size of each chunk with esdc.decoded.chunkBytes.  Note
+     * direct buffers are limited by the JVM option -XX:MaxDirectMemorySize.
+     * @return the cache, or null.
+     */
+    static synchronized DecodedVariableCache getInstance() {
+        if ( instance==null ) {
+            long maxBytes= Long.parseLong( System.getProperty( "esdc.decoded.maxBytes", "268435456" ) );
+            if ( maxBytes<=0 ) {
+                return null;
+            }
+            int chunkBytes= Integer.parseInt( System.getProperty( "esdc.decoded.chunkBytes", "1048576" ) );
+            instance= new DecodedVariableCache( maxBytes, chunkBytes );
+        }
+        return instance;
+    }
+
+    /**
+     * the decoded values of a chunk of records of one variable.
+     */
+    static final class Column {
+
+        private final String key;
+
+        /**
+         * the values, in native byte order.
+         */
+        private final ByteBuffer data;
+
+        /**
+         * the type of the values, like double.class.
+         */
+        private final Class<?> componentType;
+
+        private int pinCount;
+
+        private Column( String key, ByteBuffer data, Class<?> componentType ) {
+            this.key= key;
+            this.data= data;
+            this.componentType= componentType;
+        }
+
+        /**
+         * copy values into the array.
+         * @param from the index of the first value in the chunk
+         * @param dest the array, which has the component type of the column.
+         * @param offset the index in dest of the first value
+         * @param count the number of values
+         */
+        void copyTo( int from, Object dest, int offset, int count ) {
+            ByteBuffer b= data.duplicate().order( ByteOrder.nativeOrder() );
+            // the views are positioned separately, since Buffer.position returns Buffer in Java 8.
+            if ( componentType==double.class ) {
+                DoubleBuffer v= b.asDoubleBuffer();
+                v.position(from);
+                v.get( (double[])dest, offset, count );
+            } else if ( componentType==float.class ) {
+                FloatBuffer v= b.asFloatBuffer();
+                v.position(from);
+                v.get( (float[])dest, offset, count );
+            } else if ( componentType==long.class ) {
+                LongBuffer v= b.asLongBuffer();
+                v.position(from);
+                v.get( (long[])dest, offset, count );
+            } else if ( componentType==int.class ) {
+                IntBuffer v= b.asIntBuffer();
+                v.position(from);
+                v.get( (int[])dest, offset, count );
+            } else if ( componentType==short.class ) {
+                ShortBuffer v= b.asShortBuffer();
+                v.position(from);
+                v.get( (short[])dest, offset, count );
+            } else {
+                b.position(from);
+                b.get( (byte[])dest, offset, count );
+            }
+        }
+
+        /**
+         * return the type of the values.
+         * @return the type, like double.class
+         */
+        Class<?> getComponentType() {
+            return componentType;
+        }
+    }
+
+    private final LinkedHashMap<String,Column> columns= new LinkedHashMap<>(16,0.75f,true);
+
+    private final long maxBytes;
+
+    private final int chunkBytes;
+
+    private long sizeBytes;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    DecodedVariableCache( long maxBytes, int chunkBytes ) {
+        this.maxBytes= maxBytes;
+        this.chunkBytes= chunkBytes;
+    }
+
+    /**
+     * return the number of records in each chunk of a variable.  This is a power of two, so
+     * the chunks of variables of similar sizes line up.
+     * @param recordBytes the number of bytes of each decoded record
+     * @return the number of records
+     */
+    int getChunkRecords( int recordBytes ) {
+        return Integer.highestOneBit( Math.max( 1, chunkBytes / Math.max( 1, recordBytes ) ) );
+    }
+
+    private static String getKey( String file, String variable, int first, int last ) {
+        return file + "|" + variable + "|" + first + "-" + last;
+    }
+
+    /**
+     * return the chunk pinned, or null if it is not in the cache.  The chunk must be
+     * released when the values have been copied.
+     * @param file the identity of the file, such as its path and version.
+     * @param variable the variable
+     * @param first the first record of the chunk
+     * @param last the last record of the chunk, inclusive.
+     * @return the chunk, or null.
+     */
+    synchronized Column acquire( String file, String variable, int first, int last ) {
+        Column c= columns.get( getKey( file, variable, first, last ) );
+        if ( c==null ) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        c.pinCount++;
+        return c;
+    }
+
+    /**
+     * put the values of a chunk into the cache, returning the chunk pinned.  Null is returned
+     * when the values cannot be kept, because they are not an array of numbers, or they are
+     * more than a quarter of the budget, or there is no direct memory for them.
+     * @param file the identity of the file, such as its path and version.
+     * @param variable the variable
+     * @param first the first record of the chunk
+     * @param last the last record of the chunk, inclusive.
+     * @param values the values, an array like double[] with the values of the records in turn.
+     * @return the chunk, or null.
+     */
+    Column put( String file, String variable, int first, int last, Object values ) {
+        ByteBuffer data= encode( values );
+        if ( data==null ) {
+            return null;
+        }
+        String key= getKey( file, variable, first, last );
+        synchronized (this) {
+            Column c= columns.get(key);
+            if ( c==null ) {
+                c= new Column( key, data, values.getClass().getComponentType() );
+                columns.put( key, c );
+                sizeBytes+= data.capacity();
+            }
+            c.pinCount++;
+            evict();
+            return c;
+        }
+    }
+
+    /**
+     * release the chunk, so that it can be removed from the cache.
+     * @param c the chunk returned by acquire or put, or null.
+     */
+    synchronized void release( Column c ) {
+        if ( c!=null ) {
+            c.pinCount--;
+        }
+    }
+
+    private ByteBuffer encode( Object values ) {
+        Class<?> c= values.getClass().getComponentType();
+        if ( c==null || !c.isPrimitive() || c==boolean.class || c==char.class ) {
+            return null;
+        }
+        int n= Array.getLength( values );
+        int size= c==double.class || c==long.class ? 8 : c==float.class || c==int.class ? 4 : c==short.class ? 2 : 1;
+        if ( (long)n * size > maxBytes / 4 ) {
+            return null;
+        }
+        ByteBuffer data;
+        try {
+            data= ByteBuffer.allocateDirect( n * size ).order( ByteOrder.nativeOrder() );
+        } catch ( OutOfMemoryError ex ) {
+            logger.log(Level.INFO, "no direct memory for decoded values, see -XX:MaxDirectMemorySize: {0}", ex.getMessage() );
+            return null;
+        }
+        if ( c==double.class ) {
+            data.asDoubleBuffer().put( (double[])values );
+        } else if ( c==float.class ) {
+            data.asFloatBuffer().put( (float[])values );
+        } else if ( c==long.class ) {
+            data.asLongBuffer().put( (long[])values );
+        } else if ( c==int.class ) {
+            data.asIntBuffer().put( (int[])values );
+        } else if ( c==short.class ) {
+            data.asShortBuffer().put( (short[])values );
+        } else {
+            data.put( (byte[])values );
+            data.clear();
+        }
+        return data;
+    }
+
+    /**
+     * remove the least recently used chunks which are not pinned, until the cache is within
+     * the budget.
+     */
+    private void evict() {
+        Iterator<Column> iter= columns.values().iterator();
+        while ( sizeBytes>maxBytes && iter.hasNext() ) {
+            Column c= iter.next();
+            if ( c.pinCount>0 ) {
+                continue;
+            }
+            iter.remove();
+            sizeBytes-= c.data.capacity();
+            evictionCount++;
+            logger.log(Level.FINER, "evict {0}", c.key );
+        }
+    }
+
+    /**
+     * return the number of times a chunk was found in the cache.
+     * @return the number of hits
+     */
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * return the number of times a chunk was not found in the cache.
+     * @return the number of misses
+     */
+    synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * return the number of chunks removed to keep within the budget.
+     * @return the number of evictions
+     */
+    synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * return the number of bytes of values in the cache.
+     * @return the number of bytes
+     */
+    synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format( "DecodedVariableCache: %d chunks, %d of %d bytes, hits=%d misses=%d evictions=%d",
+            columns.size(), sizeBytes, maxBytes, hitCount, missCount, evictionCount );
+    }
+}
@@ -159,59 +159,64 @@ public class EsdcInfoSource {
             EsdcRecordSource recsrc= new EsdcRecordSource(id,null);
             cdfFile= recsrc.getSampleCdfFile();
            
-            CDFReader cdfReader= new CDFReader(cdfFile.toString());
+            CdfReaderCache.Handle handle= CdfReaderCache.getInstance().acquire(cdfFile);
+            try {
+                CDFReader cdfReader= handle.getReader();
 
-            for ( int i=0; i<tapParameters.length(); i++ ) {
-                JSONArray tapParameter= tapParameters.getJSONArray(i);
+                for ( int i=0; i<tapParameters.length(); i++ ) {
+                    JSONArray tapParameter= tapParameters.getJSONArray(i);
                 
-                String name = tapParameter.getString(1);
-                parameter= new JSONObject();
-                parameter.put( "name", name );
-                parameter.put( "type", "double" );
-                String size= tapParameter.getString(2);
-                if ( size!=null ) {
-                    JSONArray sizeArray= new JSONArray();
-                    String[] ss= size.split(",");
-                    for ( int j=0; j<ss.length; j++ ) {
-                        sizeArray.put(j,Integer.parseInt(ss[j]));
-                    }
-                    parameter.put( "size", sizeArray );
-                    JSONArray binsArray= new JSONArray();
-                    boolean binsHasNonNull= false;
-                    for ( int j=0; j<ss.length; j++ ) {
-                        JSONObject bins;
-                        try {
-                            String depname= tapParameter.getString(4+j);
-                            int len= sizeArray.getInt(j);
-                            if ( depname!=null ) {
-                                depname= depname.trim();
-                                bins = getBins(cdfFile,cdfReader,depname,len);
-                                if ( bins==null ) {
-                                    bins = getBinsIndgen(depname,len);
-                                    binsArray.put(j,bins);
+                    String name = tapParameter.getString(1);
+                    parameter= new JSONObject();
+                    parameter.put( "name", name );
+                    parameter.put( "type", "double" );
+                    String size= tapParameter.getString(2);
+                    if ( size!=null ) {
+                        JSONArray sizeArray= new JSONArray();
+                        String[] ss= size.split(",");
+                        for ( int j=0; j<ss.length; j++ ) {
+                            sizeArray.put(j,Integer.parseInt(ss[j]));
+                        }
+                        parameter.put( "size", sizeArray );
+                        JSONArray binsArray= new JSONArray();
+                        boolean binsHasNonNull= false;
+                        for ( int j=0; j<ss.length; j++ ) {
+                            JSONObject bins;
+                            try {
+                                String depname= tapParameter.getString(4+j);
+                                int len= sizeArray.getInt(j);
+                                if ( depname!=null ) {
+                                    depname= depname.trim();
+                                    bins = getBins(cdfFile,cdfReader,depname,len);
+                                    if ( bins==null ) {
+                                        bins = getBinsIndgen(depname,len);
+                                        binsArray.put(j,bins);
+                                    } else {
+                                        binsArray.put(j,bins);
+                                        binsHasNonNull= true;
+                                    }
                                 } else {
+                                    bins = getBinsIndgen(depname,len);
                                     binsArray.put(j,bins);
-                                    binsHasNonNull= true;
                                 }
-                            } else {
-                                bins = getBinsIndgen(depname,len);
-                                binsArray.put(j,bins);
+                            } catch (CDFException.ReaderError ex) {
+                                logger.log(Level.SEVERE, null, ex);
                             }
-                        } catch (CDFException.ReaderError ex) {
-                            logger.log(Level.SEVERE, null, ex);
                         }
+                        if ( binsHasNonNull && ss.length>0 && binsArray.length()>0 ) parameter.put( "bins", binsArray );
                     }
-                    if ( binsHasNonNull && ss.length>0 && binsArray.length()>0 ) parameter.put( "bins", binsArray );
-                }
-                String units= tapParameter.getString(3).trim();
-                if ( units.length()>0 ) {
-                    parameter.put( "units", tapParameter.getString(3) );
-                } else {
-                    parameter.put( "units", JSONObject.NULL );
+                    String units= tapParameter.getString(3).trim();
+                    if ( units.length()>0 ) {
+                        parameter.put( "units", tapParameter.getString(3) );
+                    } else {
+                        parameter.put( "units", JSONObject.NULL );
+                    }
+                    parameter.put( "fill", getFillValue(cdfReader,name) );
+                    parameter.setEscapeForwardSlashAlways(false);
+                    parameters.put( i+1, parameter );
                 }
-                parameter.put( "fill", getFillValue(cdfReader,name) );
-                parameter.setEscapeForwardSlashAlways(false);
-                parameters.put( i+1, parameter );
+            } finally {
+                handle.release();
             }
             
             result.put("parameters",parameters);
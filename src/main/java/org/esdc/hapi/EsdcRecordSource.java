@@ -4,12 +4,34 @@ package org.esdc.hapi;
 import gov.nasa.gsfc.spdf.cdfj.CDFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.ParseException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.codehaus.jettison.json.JSONException;
@@ -43,105 +65,715 @@ public class EsdcRecordSource extends AbstractHapiRecordSource {
     
     String id;
     
-    private Map<String,String> files = new HashMap<>();
+    /**
+     * groups of overlapping granules returned by the granule iterator, which have not yet 
+     * been read by getIterator.
+     */
+    private final Queue<List<GranuleDescriptor>> pending= new ConcurrentLinkedQueue<>();
+    
+    /**
+     * the iterator returned by the last call to getIterator, which has the time of the last
+     * record sent, so that the next group does not repeat it.
+     */
+    private MergingRecordIterator lastMerge;
+    
+    /**
+     * the interval of the last call to getGranuleIterator.  The AggregatingIterator calls
+     * getIterator with the time range of each granule, so the records of the granules are
+     * trimmed to this interval instead.
+     */
+    private int[] requestStart;
+    private int[] requestStop;
+    
+    private GranulePrefetcher<CdfContent> prefetcher;
+    
+    private GranuleListingCache.Status listingStatus;
         
     JSONObject info;
+    
+    /**
+     * the root of a local copy of the SOAR archive, or null if files are downloaded.
+     */
     String root;
     
+    /**
+     * only granules put into the archive after this time are read, in nanoseconds since 
+     * 1970-01-01T00:00Z, or Long.MIN_VALUE to read all the granules.
+     */
+    private long since= Long.MIN_VALUE;
+    
     public EsdcRecordSource( String id, JSONObject info ) {
+        this( id, info, null );
+    }
+    
+    /**
+     * create the record source, configured by the data block of the config.json file.  When
+     * the data block contains "x_archive_root", files are read from the local copy of the
+     * SOAR archive found there, and only the files missing from the archive are downloaded.
+     * @param id the dataset id
+     * @param info the info response for the dataset
+     * @param dataConfig the "data" block of "x_config" in config.json, or null.
+     */
+    public EsdcRecordSource( String id, JSONObject info, JSONObject dataConfig ) {
         logger.entering("EsdcRecordSource","constructor");
         this.id= id;
         this.info= info;
+        if ( dataConfig!=null ) {
+            String s= dataConfig.optString("x_archive_root","");
+            if ( s.length()>0 ) {
+                this.root= s;
+            }
+        }
         logger.exiting("EsdcRecordSource","constructor");
     }
+    
+    /**
+     * create the record source for incremental polling, where only the granules put into the
+     * archive after the time stamp of a previous response are read.  A client polling for 
+     * the latest data then receives only the records of new or reprocessed files, and the 
+     * cost of each poll depends on the new data rather than the length of the interval.
+     * @param id the dataset id
+     * @param info the info response for the dataset
+     * @param dataConfig the "data" block of "x_config" in config.json, or null.
+     * @param since null, an empty string, or the time stamp of a previous response (from 
+     *    getTimeStamp), which is the value of the x_since request parameter.
+     */
+    public EsdcRecordSource( String id, JSONObject info, JSONObject dataConfig, String since ) {
+        this( id, info, dataConfig );
+        if ( since!=null && since.length()>0 && !since.startsWith("${") ) { // "${" is an argument the server did not replace.
+            try {
+                this.since= Util.toNanosecondsSince1970( TimeUtil.parseISO8601Time(since) );
+            } catch ( ParseException ex ) {
+                throw new IllegalArgumentException( "unable to parse x_since: "+since, ex );
+            }
+        }
+    }
 
-    private File getCdfFile( String filename ) throws IOException {
-        logger.entering("EsdcRecordSource","getCdfFile",filename);
-        boolean local= false;
-        if ( local ) {
-            return  new File(filename);
-        } else {
-            int i= filename.lastIndexOf("/");
-            String ff= filename.substring(i+1);
-            URL url = new URL( "https://soar.esac.esa.int/soar-sl-tap/data"
+    /**
+     * return the location of the file within the local archive.  The TAP filepath is relative to
+     * the archive root, for example "/solo/data/L2/mag/2023/09/" and the filename
+     * "solo_L2_mag-rtn-normal_20230901_V01.cdf".
+     * @param filename the filepath and filename from the TAP listing, separated by a slash.
+     * @return the file within the archive, which might not exist.
+     */
+    private File getArchiveFile( String filename ) {
+        return getArchiveFile( root, filename );
+    }
+    
+    private static File getArchiveFile( String root, String filename ) {
+        return new File( root, filename );
+    }
+    
+    /**
+     * return the SOAR data service, which is set with the system property esdc.soar.dataUrl
+     * so that a local copy of the service can be used.
+     * @return the data service, by default "https://soar.esac.esa.int/soar-sl-tap/data"
+     */
+    static String getSoarDataUrl() {
+        return System.getProperty( "esdc.soar.dataUrl", "https://soar.esac.esa.int/soar-sl-tap/data" );
+    }
+    
+    /**
+     * return the URL for one file.
+     * @param dataUrl the SOAR data service
+     * @param ff the filename, like "solo_L2_mag-rtn-normal_20230901_V01.cdf"
+     * @return the URL
+     * @throws MalformedURLException 
+     */
+    static URL getProductUrl( String dataUrl, String ff ) throws MalformedURLException {
+        return new URL( dataUrl
                 + "?retrieval_type=PRODUCT"
                 + "&QUERY=SELECT+filepath,filename"
                 + "+FROM+soar.v_sc_repository_file"
                 + "+WHERE+filename=%27"+ff + "%27" );
-
-            String u= System.getProperty("user.name"); // getProcessId("000");
-            File p;
-            if ( System.getProperty("os.name").equals("Mac OS X") ) {
-                p= new File( "/Users/jbf/tmp/esdc/"+u+"/" );
-            } else {
-                p= new File( "/home/tomcat/tmp/esdc/"+u+"/" );
-            }
-
-            if ( !p.exists() ) {
-                if ( !p.mkdirs() ) {
-                    logger.warning("fail to make download area");
-                }
+    }
+    
+    /**
+     * return the CDF file, which is a file in the local archive when the archive root is 
+     * configured.  The archive file is passed directly to the CDF reader, which memory-maps
+     * it, so there is no copy.  Otherwise, or when the file is missing from the archive, 
+     * the file is downloaded into the cache.
+     * @param filename the filepath and filename from the TAP listing, separated by a slash.
+     * @return the file
+     * @throws IOException 
+     */
+    private File getCdfFile( String filename ) throws IOException {
+        logger.entering("EsdcRecordSource","getCdfFile",filename);
+        File archiveFile= root==null ? null : getArchiveFile(filename);
+        if ( archiveFile!=null && archiveFile.canRead() ) {
+            logger.exiting("EsdcRecordSource","getCdfFile",filename);
+            return archiveFile;
+        } else {
+            if ( archiveFile!=null ) {
+                logger.log(Level.INFO, "file is not in the local archive, downloading: {0}", archiveFile);
             }
+            int i= filename.lastIndexOf("/");
+            String ff= filename.substring(i+1);
+            URL url = getProductUrl( getSoarDataUrl(), ff );
 
-            File f= new File( p, ff );
-            if ( f.exists() ) {
-                //long ageMillis= System.currentTimeMillis()-f.lastModified();
-                //if ( ageMillis<00000 ) {
-                    logger.exiting("EsdcRecordSource","getCdfFile",filename);
-                    return f;
-                //}
+            CdfFileCache cache= CdfFileCache.getInstance();
+            File f= cache.get(ff);
+            if ( f!=null ) {
+                logger.exiting("EsdcRecordSource","getCdfFile",filename);
+                return f;
             }
             
+            File file= download( cache, url, ff );
             logger.exiting("EsdcRecordSource","getCdfFile",filename);
-            File file= SourceUtil.downloadFile( url, f );
             return file;
                 
         }
     }
     
+    /**
+     * files no larger than this are downloaded into memory and read from there, rather than
+     * written to disk and then opened.  This is set with the system property 
+     * esdc.memory.maxFileBytes, and zero turns this off.
+     */
+    private static final int MEMORY_MAX_FILE_BYTES= Integer.parseInt( System.getProperty( "esdc.memory.maxFileBytes", "4000000" ) );
+    
+    /**
+     * when true, files read into memory are also written to the cache in the background, so 
+     * that the next request need not download them.  This is set with the system property
+     * esdc.memory.writeBehind.
+     */
+    private static final boolean MEMORY_WRITE_BEHIND= Boolean.parseBoolean( System.getProperty( "esdc.memory.writeBehind", "true" ) );
+    
+    private static ExecutorService writeBehindExecutor;
+    
+    private static synchronized ExecutorService getWriteBehindExecutor() {
+        if ( writeBehindExecutor==null ) {
+            writeBehindExecutor= Executors.newSingleThreadExecutor( (Runnable r) -> {
+                Thread t= new Thread( r, "esdc-write-behind" );
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return writeBehindExecutor;
+    }
+    
+    /**
+     * return the content of the CDF file.  Small files which are not in the archive or 
+     * cache are downloaded into memory, large files are read partially, and other files are
+     * downloaded into the cache.
+     * @param filename the filepath and filename from the TAP listing, separated by a slash.
+     * @return the content of the file, or null when the file is to be read partially but 
+     *    the parameters are not yet known.
+     * @throws IOException 
+     */
+    private CdfContent loadCdf( String filename ) throws IOException {
+        if ( MEMORY_MAX_FILE_BYTES>0 && CdfContent.isInMemorySupported() ) {
+            CdfContent result= loadCdfInMemory( filename );
+            if ( result!=null ) {
+                return result;
+            }
+        }
+        if ( PARTIAL_MIN_FILE_BYTES>0 && isPartialCandidate( filename ) ) {
+            String[] params= partialParams;
+            if ( params==null ) {
+                return null;
+            }
+            CdfContent result= loadPartial( filename, params );
+            if ( result!=null ) {
+                return result;
+            }
+        }
+        return CdfContent.of( getCdfFile( filename ) );
+    }
+    
+    /**
+     * files at least this large are read partially, fetching only the variables which are
+     * needed with HTTP Range requests.  This is set with the system property 
+     * esdc.partial.minFileBytes, and zero turns this off.
+     */
+    private static final long PARTIAL_MIN_FILE_BYTES= Long.parseLong( System.getProperty( "esdc.partial.minFileBytes", "50000000" ) );
+    
+    /**
+     * the budget for the partially fetched files, set with the system property esdc.partial.maxBytes.
+     */
+    private static final long PARTIAL_MAX_BYTES= Long.parseLong( System.getProperty( "esdc.partial.maxBytes", "20000000000" ) );
+    
+    /**
+     * the parameters of the last call to getIterator, which are the variables fetched when
+     * files are read partially.  This is null until getIterator is called, so the first
+     * file is not prefetched.
+     */
+    private volatile String[] partialParams;
+    
+    /**
+     * return true if the file should be read partially, because it is not local and the 
+     * files of the dataset are large.
+     * @param filename the filepath and filename from the TAP listing, separated by a slash.
+     * @return true if the file should be read partially.
+     */
+    private boolean isPartialCandidate( String filename ) {
+        return isPartialCandidate( id, root, filename );
+    }
+    
+    private static boolean isPartialCandidate( String id, String root, String filename ) {
+        if ( root!=null && getArchiveFile(root,filename).canRead() ) {
+            return false;
+        }
+        Long size= typicalFileSizes.get(id);
+        if ( size!=null && size<PARTIAL_MIN_FILE_BYTES ) {
+            return false;
+        }
+        String ff= filename.substring( filename.lastIndexOf("/")+1 );
+        return !downloads.containsKey(ff) && !CdfFileCache.getInstance().contains(ff);
+    }
+    
+    /**
+     * fetch the parts of the file needed for the parameters into a sparse file, kept in the 
+     * "partial" directory of the cache.
+     * @param filename the filepath and filename from the TAP listing, separated by a slash.
+     * @param params the parameters, which are the names of the CDF variables.
+     * @return the content, or null if the whole file should be downloaded.
+     * @throws IOException 
+     */
+    private CdfContent loadPartial( String filename, String[] params ) throws IOException {
+        String ff= filename.substring( filename.lastIndexOf("/")+1 );
+        File dir= new File( CdfFileCache.getInstance().getRoot(), "partial" );
+        File file= new File( dir, ff );
+        PartialCdfFetcher fetcher= new PartialCdfFetcher( getProductUrl( getSoarDataUrl(), ff ), file );
+        try {
+            if ( fetcher.fetch( Arrays.asList(params), PARTIAL_MIN_FILE_BYTES ) ) {
+                PartialCdfFetcher.trim( dir, PARTIAL_MAX_BYTES );
+                return CdfContent.of(file);
+            } else {
+                return null;
+            }
+        } catch ( ClosedByInterruptException ex ) {
+            throw ex;
+        } catch ( IOException ex ) {
+            logger.log(Level.INFO, "unable to read "+ff+" partially, downloading whole file", ex);
+            PartialCdfFetcher.delete(file);
+            return null;
+        }
+    }
+    
+    /**
+     * return the file, when it is local, or download it into memory when it is small.  A small
+     * file in the compressed tier of the cache is decompressed into memory.
+     * @param filename the filepath and filename from the TAP listing, separated by a slash.
+     * @return the content, or null if the file should be downloaded into the cache.
+     * @throws IOException 
+     */
+    private CdfContent loadCdfInMemory( String filename ) throws IOException {
+        if ( root!=null && getArchiveFile(filename).canRead() ) {
+            return null;
+        }
+        Long size= typicalFileSizes.get(id);
+        if ( size!=null && size>MEMORY_MAX_FILE_BYTES ) {
+            return null;
+        }
+        int i= filename.lastIndexOf("/");
+        String ff= filename.substring(i+1);
+        // register the download, so that other requests for the file wait for it.
+        CompletableFuture<File> future= new MemoryDownload();
+        if ( downloads.putIfAbsent( ff, future )!=null ) {
+            return null; // wait for the download already in progress.
+        }
+        try {
+            CdfFileCache cache= CdfFileCache.getInstance();
+            URL url= getProductUrl( getSoarDataUrl(), ff );
+            ByteBuffer buffer= cache.getFromColdStore( ff, MEMORY_MAX_FILE_BYTES );
+            if ( buffer==null ) {
+                if ( cache.contains(ff) ) {
+                    return null; // getCdfFile reads it, counting the hit.
+                }
+                try {
+                    buffer= Util.downloadToBuffer( url, MEMORY_MAX_FILE_BYTES );
+                } catch ( ClosedByInterruptException ex ) {
+                    throw ex;
+                } catch ( IOException ex ) {
+                    logger.log(Level.FINE, "download into memory failed, downloading to cache: {0}", ex.getMessage());
+                    return null;
+                }
+                if ( buffer==null ) {
+                    logger.log(Level.FINE, "{0} is too large to read in memory", ff);
+                    return null;
+                }
+                logger.log(Level.FINE, "read {0} in memory ({1} bytes)", new Object[] { ff, buffer.remaining() } );
+                cache.countMiss();
+            }
+            if ( MEMORY_WRITE_BEHIND ) {
+                writeBehind( cache, url, ff, buffer.duplicate(), future );
+                future= null; // the write-behind completes it.
+            }
+            return CdfContent.of(buffer);
+        } finally {
+            if ( future!=null ) {
+                // callers waiting for this download will download the file themselves.
+                future.completeExceptionally( new SoarBatchRetriever.NotRetrievedException( "not written to the cache: "+ff ) );
+                downloads.remove( ff, future );
+            }
+        }
+    }
+    
+    /**
+     * write the buffer into the cache in the background, completing the future registered 
+     * in downloads for the file, so that a request for the file waits for it.
+     * @param cache the cache
+     * @param url the source of the file
+     * @param ff the filename
+     * @param buffer the bytes of the file
+     * @param future the download in progress, which is completed with the file.
+     */
+    private static void writeBehind( CdfFileCache cache, URL url, String ff, ByteBuffer buffer, CompletableFuture<File> future ) {
+        getWriteBehindExecutor().submit( () -> {
+            try {
+                File file= cache.getFile(ff);
+                File partFile= new File( file.getPath()+".part" );
+                try ( FileChannel ch= FileChannel.open( partFile.toPath(), 
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING ) ) {
+                    while ( buffer.hasRemaining() ) {
+                        ch.write(buffer);
+                    }
+                }
+                Files.move( partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+                cache.put( ff, url.toString() );
+                future.complete( file );
+            } catch ( IOException | RuntimeException ex ) {
+                // a request waiting for this will download the file itself.
+                future.completeExceptionally( new SoarBatchRetriever.NotRetrievedException( "unable to write "+ff, ex ) );
+            } finally {
+                downloads.remove( ff, future );
+            }
+        });
+    }
+    
+    /**
+     * downloads in progress, so that only one download is made for each file.
+     */
+    private static final ConcurrentHashMap<String,Future<File>> downloads= new ConcurrentHashMap<>();
+    
+    /**
+     * the number of callers which were served by another thread's download.
+     */
+    private static final AtomicLong sharedDownloadCount= new AtomicLong();
+    
+    /**
+     * a download of one file started by a request, as opposed to a batch retrieval or
+     * a write-behind, so that callers joining it can be counted.
+     */
+    private static final class DownloadTask extends FutureTask<File> {
+        private DownloadTask( Callable<File> callable ) {
+            super(callable);
+        }
+    }
+    
+    /**
+     * a download of a small file into memory, which is registered while the file is 
+     * downloaded and then written to the cache.
+     */
+    private static final class MemoryDownload extends CompletableFuture<File> {
+    }
+    
+    /**
+     * return the number of callers which were served by a download made by another request.
+     * Waiting for a batch retrieval is not counted.
+     * @return the number of callers which joined another request's download.
+     */
+    public static long getSharedDownloadCount() {
+        return sharedDownloadCount.get();
+    }
+    
+    /**
+     * download the file into the cache.  When another thread is already downloading the file,
+     * then wait for that download instead.
+     * @param cache the cache
+     * @param url the URL of the file
+     * @param ff the filename
+     * @return the file
+     * @throws IOException 
+     */
+    private static File download( CdfFileCache cache, URL url, String ff ) throws IOException {
+        FutureTask<File> task= new DownloadTask( () -> {
+            // another thread may have just completed the download.  This is not counted as
+            // an access, since the caller has already looked in the cache.
+            File f= cache.peek(ff);
+            if ( f!=null ) {
+                return f;
+            }
+            f= Util.downloadFile( url, cache.getFile(ff) );
+            cache.put( ff, url.toString() );
+            logger.log(Level.FINE, "{0}", cache);
+            return f;
+        });
+        
+        Future<File> running= downloads.putIfAbsent( ff, task );
+        boolean shared;
+        if ( running==null ) {
+            try {
+                task.run();
+            } finally {
+                downloads.remove( ff, task );
+            }
+            running= task;
+            shared= false;
+        } else {
+            logger.log(Level.FINE, "waiting for download of {0} by another thread", ff );
+            shared= true;
+        }
+        
+        try {
+            File result= running.get();
+            if ( shared && ( running instanceof DownloadTask || running instanceof MemoryDownload ) ) {
+                sharedDownloadCount.incrementAndGet();
+            }
+            return result;
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            throw new IOException( "interrupted while waiting for "+ff, ex );
+        } catch ( ExecutionException ex ) {
+            Throwable cause= ex.getCause();
+            if ( shared && ( cause instanceof ClosedByInterruptException 
+                    || cause instanceof SoarBatchRetriever.NotRetrievedException ) ) {
+                // the other thread was a prefetch which was cancelled, or a batch request 
+                // which did not return the file, so the download is made here.
+                return download( cache, url, ff );
+            } else if ( cause instanceof IOException ) {
+                throw (IOException)cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+    
+    
+    /**
+     * the most files retrieved with one batch request.
+     */
+    private static final int BATCH_SIZE= 25;
+    
+    /**
+     * batch requests are made for the granules up to this many ahead of the granule being 
+     * read, so that an abandoned request for a long interval does not keep the shared batch
+     * threads busy.
+     */
+    private static final int BATCH_WINDOW= 2 * BATCH_SIZE;
+    
+    /**
+     * the granules of the request when they are small enough for batch requests, or null.
+     */
+    private List<GranuleDescriptor> batchGranules;
+    
+    /**
+     * the index of the next granule to be considered for a batch request.
+     */
+    private int batchNext;
+    
+    /**
+     * the batch requests which may not have started, so that they can be cancelled.
+     */
+    private final List<SoarBatchRetriever.Batch> batches= new ArrayList<>();
+    
+    /**
+     * files larger than this are retrieved one at a time, so that they are downloaded in
+     * parallel and the first file is available sooner.
+     */
+    private static final long BATCH_MAX_FILE_BYTES= Long.parseLong( System.getProperty( "esdc.batch.maxFileBytes", "5000000" ) );
+    
+    /**
+     * the size of the last file read for each dataset, used to decide if files are small
+     * enough to be retrieved with batch requests.
+     */
+    private static final ConcurrentHashMap<String,Long> typicalFileSizes= new ConcurrentHashMap<>();
+    
+    /**
+     * prepare batch requests for the granules which are not cached, when the files of the 
+     * dataset are small, and start the requests for the first granules.  Each file is 
+     * registered as a download in progress, so that getCdfFile waits for the batch request
+     * instead of requesting the file again.
+     * @param granules the granules
+     */
+    private synchronized void startBatchRetrieval( List<GranuleDescriptor> granules ) throws MalformedURLException {
+        cancelBatches();
+        batchGranules= null;
+        batchNext= 0;
+        Long size= typicalFileSizes.get(id);
+        if ( size==null || size>BATCH_MAX_FILE_BYTES || granules.size()<2 ) {
+            return;
+        }
+        batchGranules= granules;
+        queueBatches( 0 );
+    }
+    
+    /**
+     * start batch requests for the granules up to BATCH_WINDOW ahead of the granule being read.
+     * @param readIndex the index of the granule being read.
+     */
+    private synchronized void queueBatches( int readIndex ) throws MalformedURLException {
+        if ( batchGranules==null ) {
+            return;
+        }
+        batches.removeIf( SoarBatchRetriever.Batch::isDone );
+        CdfFileCache cache= CdfFileCache.getInstance();
+        String dataUrl= getSoarDataUrl();
+        int limit= Math.min( batchGranules.size(), readIndex + BATCH_WINDOW );
+        while ( batchNext<limit ) {
+            Map<String,CompletableFuture<File>> batch= new LinkedHashMap<>();
+            while ( batchNext<batchGranules.size() && batch.size()<BATCH_SIZE ) {
+                GranuleDescriptor g= batchGranules.get(batchNext++);
+                if ( root!=null && getArchiveFile(g.getPath()).canRead() ) continue;
+                if ( cache.contains(g.filename) ) continue;
+                CompletableFuture<File> future= new CompletableFuture<>();
+                if ( downloads.putIfAbsent( g.filename, future )!=null ) continue;
+                future.whenComplete( (File f, Throwable t) -> downloads.remove( g.filename, future ) );
+                batch.put( g.filename, future );
+            }
+            if ( batch.size()==1 ) {
+                // a single file is downloaded normally.
+                Map.Entry<String,CompletableFuture<File>> e= batch.entrySet().iterator().next();
+                e.getValue().completeExceptionally( new SoarBatchRetriever.NotRetrievedException( "single file" ) );
+            } else if ( batch.size()>1 ) {
+                batches.add( SoarBatchRetriever.submit( cache, dataUrl, batch ) );
+            }
+        }
+    }
+    
+    /**
+     * cancel the batch requests which have not started.
+     */
+    private synchronized void cancelBatches() {
+        int count= 0;
+        for ( SoarBatchRetriever.Batch b: batches ) {
+            if ( b.cancel() ) count++;
+        }
+        batches.clear();
+        batchGranules= null;
+        if ( count>0 ) {
+            logger.log(Level.FINE, "cancelled {0} batch requests", count);
+        }
+    }
     
     @Override
     public boolean hasGranuleIterator() {
         return true;
     }
 
+    /**
+     * iterator over the granules of the listing.  Granules which overlap in time are 
+     * returned as one granule covering them all, so that getIterator can merge their records.
+     * Each group is also put into the queue of pending granules, where getIterator will find it.
+     */
     private class EsdcGranuleIterator implements Iterator<int[]> {
 
-        private final Iterator<String> iter;
+        private final List<GranuleDescriptor> granules;
+        
+        private int index= 0;
                 
-        private EsdcGranuleIterator( Iterator<String> iter ) {
-            this.iter= iter;
+        /**
+         * @param granules the granules, sorted by begin time.
+         */
+        private EsdcGranuleIterator( List<GranuleDescriptor> granules ) {
+            this.granules= granules;
         }
 
         @Override
         public boolean hasNext() {
-            return iter.hasNext(); // TODO: I suspect the first record must be read since it is a header.
+            return index<granules.size();
         }
 
         @Override
         public int[] next() {
-            logger.entering("EsdcRecordSource.EsdcGranuleIterator","next");
             try {
-                String line= iter.next();
-                String[] ss= SourceUtil.stringSplit(line);
-                if ( ss[0].startsWith("begin") && iter.hasNext() ) { 
-                    line= iter.next();
-                    ss= SourceUtil.stringSplit(line);
-                }
-                String timeRange=  ss[0]+"/"+ ss[1];
-                files.put( timeRange, ss[3] + "/" + ss[2] );
-                logger.exiting("EsdcRecordSource.EsdcGranuleIterator","next");
-                return TimeUtil.parseISO8601TimeRange( timeRange );
-            } catch (ParseException ex) {
+                queueBatches( index );
+            } catch ( MalformedURLException ex ) {
                 throw new RuntimeException(ex);
             }
+            GranuleDescriptor g= granules.get(index++);
+            List<GranuleDescriptor> group= new ArrayList<>(2);
+            group.add(g);
+            long start= g.start;
+            long stop= g.stop;
+            while ( index<granules.size() && granules.get(index).start<stop ) {
+                g= granules.get(index++);
+                group.add(g);
+                stop= Math.max( stop, g.stop );
+            }
+            pending.add(group);
+            return group.size()==1 ? g.getTimeRange() : GranuleDescriptor.getTimeRange( start, stop );
         }
         
     }
     
-    @Override
-    public Iterator<int[]> getGranuleIterator(int[] start, int[] stop) {
-        logger.entering("EsdcRecordSource","getGranuleIterator");
+    /**
+     * the TAP column with the time each file was put into the archive, which is used for the
+     * time stamp of the data.  This is set with the system property esdc.tap.timeStampColumn,
+     * and an empty string leaves the column out of the query.
+     */
+    private static final String TIME_STAMP_COLUMN= System.getProperty( "esdc.tap.timeStampColumn", "insertion_time" );
+    
+    /**
+     * when the TAP server rejects a query with the time stamp column, the column is not 
+     * requested again for this long, in milliseconds.
+     */
+    private static final long TIME_STAMP_COLUMN_RETRY_MILLIS= 3600000;
+    
+    /**
+     * the time, in milliseconds since 1970, before which the time stamp column is not 
+     * requested because the TAP server rejected it.
+     */
+    private static volatile long timeStampColumnRetryTime= 0;
+    
+    /**
+     * return true if the exception is the TAP server rejecting the time stamp column, which
+     * is an HTTP 400 response or an error naming the column, rather than a network failure.
+     * @param ex the exception from the query
+     * @return true if the column was rejected.
+     */
+    private static boolean isTimeStampColumnRejected( Throwable ex ) {
+        for ( Throwable t= ex; t!=null; t= t.getCause() ) {
+            String msg= t.getMessage();
+            if ( msg==null ) continue;
+            if ( msg.contains("response code:") || t instanceof java.io.FileNotFoundException ) {
+                // the message has the query URL, which names the column, so only the code is used.
+                return msg.contains("response code: 400");
+            }
+            if ( msg.toLowerCase().contains( TIME_STAMP_COLUMN.toLowerCase() ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * list the granules overlapping the interval from the TAP server.  The time each file 
+     * was put into the archive is listed as well, and when the TAP server does not support
+     * this the query is made again without it.
+     * @param id the dataset id
+     * @param start seven-component start time
+     * @param stop seven-component stop time
+     * @return the granules, sorted by begin time.
+     * @throws IOException 
+     */
+    private static List<GranuleDescriptor> fetchGranules( String id, int[] start, int[] stop ) throws IOException {
+        if ( TIME_STAMP_COLUMN.length()>0 && System.currentTimeMillis()>=timeStampColumnRetryTime ) {
+            try {
+                return fetchGranules( id, start, stop, TIME_STAMP_COLUMN );
+            } catch ( IOException | IllegalArgumentException ex ) {
+                if ( !isTimeStampColumnRejected(ex) ) {
+                    throw ex; // a network or server failure, which is not a reason to drop the column.
+                }
+                logger.log(Level.INFO, "TAP server rejected {0}, listing without time stamps for an hour: {1}", 
+                    new Object[] { TIME_STAMP_COLUMN, ex.toString() } );
+                timeStampColumnRetryTime= System.currentTimeMillis() + TIME_STAMP_COLUMN_RETRY_MILLIS;
+            }
+        }
+        return fetchGranules( id, start, stop, null );
+    }
+    
+    /**
+     * list the granules overlapping the interval from the TAP server.
+     * @param id the dataset id
+     * @param start seven-component start time
+     * @param stop seven-component stop time
+     * @param timeStampColumn null or the column with the time the file was put into the archive.
+     * @return the granules, sorted by begin time.
+     * @throws IOException 
+     */
+    private static List<GranuleDescriptor> fetchGranules( String id, int[] start, int[] stop, String timeStampColumn ) throws IOException {
         // https://soar.esac.esa.int/soar-sl-tap/tap/sync?REQUEST=doQuery
         //   &LANG=ADQL&FORMAT=json
         //   &QUERY=SELECT+filename,+filepath+FROM+v_sc_data_item
@@ -150,11 +782,171 @@ public class EsdcRecordSource extends AbstractHapiRecordSource {
         // https://soar.esac.esa.int/soar-sl-tap/tap/sync?REQUEST=doQuery&LANG=ADQL&FORMAT=json&QUERY=SELECT+filename,+filepath,file_format+FROM+v_sc_data_item&begin_time%3E%272020-08-29+00:00:28%27&end_time%3E%272020-09-06+00:00:28%27&file_format=%27CDF%27
         String begin= TimeUtil.formatIso8601Time(start);
         String end=  TimeUtil.formatIso8601Time(stop);
-        String url= "https://soar.esac.esa.int/soar-sl-tap/tap/sync?REQUEST=doQuery&LANG=ADQL&FORMAT=csv&QUERY=SELECT+begin_time,end_time,filename,+filepath+FROM+v_sc_data_item+WHERE+end_time%3E%27"+begin+"%27+AND+begin_time%3C%27"+end+"%27+AND+data_item_id+LIKE+%27"+id+"%25%27+ORDER+BY+begin_time+ASC";
+        String url= "https://soar.esac.esa.int/soar-sl-tap/tap/sync?REQUEST=doQuery&LANG=ADQL&FORMAT=csv&QUERY=SELECT+begin_time,end_time,filename,+filepath"+(timeStampColumn==null ? "" : ","+timeStampColumn)+"+FROM+v_sc_data_item+WHERE+end_time%3E%27"+begin+"%27+AND+begin_time%3C%27"+end+"%27+AND+data_item_id+LIKE+%27"+id+"%25%27+ORDER+BY+begin_time+ASC";
+        
+        Iterator<String> iter= org.hapiserver.source.SourceUtil.getFileLines(new URL(url));
+        List<GranuleDescriptor> granules= new ArrayList<>();
+        while ( iter.hasNext() ) {
+            String[] ss= SourceUtil.stringSplit(iter.next());
+            if ( ss[0].startsWith("begin") ) { 
+                continue;
+            }
+            try {
+                long t1= Util.toNanosecondsSince1970( TimeUtil.parseISO8601Time(ss[0]) );
+                long t2= Util.toNanosecondsSince1970( TimeUtil.parseISO8601Time(ss[1]) );
+                long modified= Long.MIN_VALUE;
+                if ( timeStampColumn!=null && ss.length>4 && ss[4].trim().length()>0 ) {
+                    modified= Util.toNanosecondsSince1970( TimeUtil.parseISO8601Time(ss[4].trim()) );
+                }
+                granules.add( new GranuleDescriptor( t1, t2, ss[3], ss[2], modified ) );
+            } catch ( ParseException ex ) {
+                throw new IllegalArgumentException( "unable to parse times in listing: "+ss[0]+"/"+ss[1], ex );
+            }
+        }
+        return granules;
+    }
+    
+    /**
+     * return only the newest version of each file in the listing, and only the files of
+     * this dataset.  Since the TAP query matches data_item_id LIKE 'id%', the listing contains
+     * all versions of each file, and may contain files of other datasets whose ids start 
+     * with this id, like solo_L2_mag-rtn-normal-1-minute for solo_L2_mag-rtn-normal.
+     * @param id the dataset id
+     * @param granules the granules, sorted by begin time.
+     * @return the newest version of each file, in the same order.
+     */
+    private static List<GranuleDescriptor> selectNewestVersions( String id, List<GranuleDescriptor> granules ) {
+        Map<String,GranuleDescriptor> newest= new LinkedHashMap<>();
+        String prefix= id + "_";
+        for ( GranuleDescriptor g: granules ) {
+            if ( !g.filename.startsWith(prefix) ) {
+                continue;
+            }
+            String base= CdfFileCache.getUnversionedName(g.filename);
+            GranuleDescriptor other= newest.get(base);
+            if ( other==null || other.version < g.version ) {
+                newest.put( base, g );
+            }
+        }
+        if ( newest.size()<granules.size() ) {
+            logger.log(Level.FINE, "using {0} of {1} files in listing", new Object[] { newest.size(), granules.size() } );
+        }
+        return new ArrayList<>( newest.values() );
+    }
+    
+    /**
+     * return only the granules put into the archive after the time.  Granules without an
+     * insertion time are kept, since they might be new.
+     * @param granules the granules
+     * @param since the time, in nanoseconds since 1970-01-01T00:00Z.
+     * @return the granules, in the same order.
+     */
+    private static List<GranuleDescriptor> selectModifiedSince( List<GranuleDescriptor> granules, long since ) {
+        List<GranuleDescriptor> result= new ArrayList<>();
+        for ( GranuleDescriptor g: granules ) {
+            if ( g.modified==Long.MIN_VALUE || g.modified>since ) {
+                result.add(g);
+            }
+        }
+        logger.log(Level.FINE, "{0} of {1} files are new", new Object[] { result.size(), granules.size() } );
+        return result;
+    }
+    
+    /**
+     * list the granules for the interval, using the listing cache, keeping only the newest
+     * version of each file.
+     * @param start seven-component start time
+     * @param stop seven-component stop time
+     * @return the granules, sorted by begin time.
+     * @throws IOException 
+     */
+    private List<GranuleDescriptor> listGranules( int[] start, int[] stop ) throws IOException {
+        GranuleListingCache.Status[] status= new GranuleListingCache.Status[1];
+        List<GranuleDescriptor> granules= GranuleListingCache.getInstance().getGranules( id, start, stop, 
+            (int[] s, int[] e) -> fetchGranules( id, s, e ), status );
+        listingStatus= status[0];
+        return selectNewestVersions( id, granules );
+    }
+    
+    /**
+     * return whether the granule listing of the last call to getGranuleIterator was found 
+     * in the listing cache.
+     * @return null if getGranuleIterator has not been called, or HIT, PARTIAL_HIT or MISS.
+     */
+    public String getListingCacheStatus() {
+        return listingStatus==null ? null : listingStatus.toString();
+    }
+    
+    /**
+     * the listing and download used by the AccessPredictor to warm the cache.  This is static
+     * and keeps only the dataset id and archive root, since the predictor may hold it after
+     * the request is finished, and the record source holds the blocks of the last file read.
+     */
+    private static final class CacheWarmer implements AccessPredictor.Warmer {
+        private final String id;
+        private final String root;
+
+        private CacheWarmer( String id, String root ) {
+            this.id= id;
+            this.root= root;
+        }
+
+        @Override
+        public List<GranuleDescriptor> list( int[] start, int[] stop ) throws IOException {
+            return selectNewestVersions( id, GranuleListingCache.getInstance().getGranules( id, start, stop, 
+                (int[] s, int[] e) -> fetchGranules( id, s, e ), null ) );
+        }
+
+        @Override
+        public boolean isLocal( GranuleDescriptor g ) {
+            if ( root!=null && getArchiveFile( root, g.getPath() ).canRead() ) {
+                return true;
+            }
+            return CdfFileCache.getInstance().contains(g.filename);
+        }
+
+        @Override
+        public File load( GranuleDescriptor g ) throws IOException {
+            if ( isLocal(g) ) {
+                return null; // a request read it since it was listed, so it is not warmed here.
+            }
+            if ( PARTIAL_MIN_FILE_BYTES>0 && isPartialCandidate( id, root, g.getPath() ) ) {
+                return null; // a request reads only the parts it needs, so the whole file is not downloaded.
+            }
+            return download( CdfFileCache.getInstance(), getProductUrl( getSoarDataUrl(), g.filename ), g.filename );
+        }
+    }
+    
+    @Override
+    public Iterator<int[]> getGranuleIterator(int[] start, int[] stop) {
+        logger.entering("EsdcRecordSource","getGranuleIterator");
         
         try {
-            Iterator<String> iter= org.hapiserver.source.SourceUtil.getFileLines(new URL(url));
-            EsdcGranuleIterator granuleIter = new EsdcGranuleIterator(iter);
+            // the listing is read completely so that the files can be downloaded ahead of the iterator.
+            List<GranuleDescriptor> granules= listGranules( start, stop );
+            if ( since!=Long.MIN_VALUE ) {
+                granules= selectModifiedSince( granules, since );
+            }
+            
+            List<String> filenames= new ArrayList<>(granules.size());
+            for ( GranuleDescriptor g: granules ) {
+                filenames.add( g.getPath() );
+            }
+            
+            if ( prefetcher!=null ) {
+                prefetcher.cancel();
+            }
+            pending.clear();
+            lastMerge= null;
+            requestStart= start;
+            requestStop= stop;
+            
+            startBatchRetrieval( granules );
+            prefetcher= new GranulePrefetcher<>( this::loadCdf, filenames );
+            
+            AccessPredictor.getInstance().observe( id, start, stop, new CacheWarmer( id, root ) );
+            
+            EsdcGranuleIterator granuleIter = new EsdcGranuleIterator(granules);
             logger.exiting("EsdcRecordSource","getGranuleIterator");
             return granuleIter;
             
@@ -168,6 +960,36 @@ public class EsdcRecordSource extends AbstractHapiRecordSource {
     }
 
     
+    /**
+     * return the time the newest file of the interval was put into the archive, so that
+     * clients and proxies holding the data can be told it has not changed.  This is taken
+     * from the granule listing, which is usually in the listing cache already.
+     * @param start seven-component start time
+     * @param stop seven-component stop time
+     * @return the isotime time stamp, or null if it is not known for any of the files.
+     */
+    @Override
+    public String getTimeStamp( int[] start, int[] stop ) {
+        try {
+            List<GranuleDescriptor> granules= selectNewestVersions( id,
+                GranuleListingCache.getInstance().getGranules( id, start, stop, (int[] s, int[] e) -> fetchGranules( id, s, e ), null ) );
+            if ( granules.isEmpty() ) {
+                return null;
+            }
+            long newest= Long.MIN_VALUE;
+            for ( GranuleDescriptor g: granules ) {
+                if ( g.modified==Long.MIN_VALUE ) {
+                    return null;
+                }
+                newest= Math.max( newest, g.modified );
+            }
+            return TimeUtil.formatIso8601Time( Util.fromNanosecondsSince1970(newest) );
+        } catch ( IOException ex ) {
+            logger.log(Level.INFO, "unable to list granules for time stamp", ex);
+            return null;
+        }
+    }
+    
     @Override
     public boolean hasParamSubsetIterator() {
         return true;
@@ -188,40 +1010,119 @@ public class EsdcRecordSource extends AbstractHapiRecordSource {
             String[] ss= EsdcAvailabilityInfoSource.getExtent(id);
             int[] start= TimeUtil.parseISO8601Time(ss[2]);
             int[] stop= TimeUtil.parseISO8601Time(ss[3]);
-            Iterator<int[]> it= this.getGranuleIterator( start, stop );
-            while ( it.hasNext() ) {
-                it.next();
-            }
-            String starts= String.format( "%4d-%02d-%02dT%02d:%02d:%02d.%01d", start[0], start[1], start[2], start[3], start[4], start[5], start[6] );
-            String stops= String.format( "%4d-%02d-%02dT%02d:%02d:%02d.%01d", stop[0], stop[1], stop[2], stop[3], stop[4], stop[5], stop[6]);
-            String key= starts + "/" + stops;
-            String filename= files.get(key);
-            if ( filename==null ) {
+            List<GranuleDescriptor> granules= listGranules( start, stop );
+            if ( granules.isEmpty() ) {
                 throw new IllegalStateException("this shouldn't happen");
             }
-            return getCdfFile(filename);
+            GranuleDescriptor sample= granules.get(0);
+            long t1= Util.toNanosecondsSince1970(start);
+            long t2= Util.toNanosecondsSince1970(stop);
+            for ( GranuleDescriptor g: granules ) {
+                if ( g.start==t1 && g.stop==t2 ) {
+                    sample= g;
+                }
+            }
+            return getCdfFile(sample.getPath());
         } catch (ParseException ex) {
             throw new RuntimeException(ex);
         }
     }
     
+    /**
+     * return the group of granules with the time range, taking it from the queue of pending 
+     * granules.  Groups the caller skipped are discarded.
+     * @param start the seven-component start time of the group
+     * @param stop the seven-component stop time of the group
+     * @return the granules, or null if they are not found.
+     */
+    private List<GranuleDescriptor> takePendingGranules( int[] start, int[] stop ) {
+        long t1= Util.toNanosecondsSince1970(start);
+        long t2= Util.toNanosecondsSince1970(stop);
+        List<GranuleDescriptor> group;
+        while ( ( group= pending.poll() )!=null ) {
+            long groupStop= group.get(0).stop;
+            for ( GranuleDescriptor g: group ) {
+                groupStop= Math.max( groupStop, g.stop );
+            }
+            if ( group.get(0).start==t1 && groupStop==t2 ) {
+                return group;
+            }
+            logger.log(Level.FINE, "granules were not read: {0}", group);
+        }
+        return null;
+    }
+    
+    /**
+     * open the iterator over the records of one granule.
+     * @param granule the granule
+     * @param start the seven-component start time, records before this are skipped.
+     * @param stop the seven-component stop time, records at or after this are skipped.
+     * @param params the parameters
+     * @return the iterator
+     * @throws IOException
+     * @throws CDFException.ReaderError 
+     */
+    private CdfFileRecordIterator openGranule( GranuleDescriptor granule, int[] start, int[] stop, String[] params ) 
+            throws IOException, CDFException.ReaderError {
+        String filename= granule.getPath();
+
+        logger.log(Level.FINE, "getting CDF file {0}...", filename);
+        partialParams= params;
+        CdfContent cdf= prefetcher!=null ? prefetcher.getFile(filename) : loadCdf(filename);
+        if ( cdf==null || ( cdf.getFile()!=null && PartialCdfFetcher.isPartial(cdf.getFile()) ) ) {
+            // make sure the partial file has these parameters.
+            cdf= loadPartial( filename, params );
+            if ( cdf==null ) {
+                cdf= CdfContent.of( getCdfFile(filename) );
+            }
+        }
+        logger.log(Level.FINE, "got CDF file {0}.", cdf);
+        AccessPredictor.getInstance().recordUse( granule.filename );
+        typicalFileSizes.put( id, cdf.length() );
+
+        CdfFileRecordIterator result;
+        if ( cdf.getFile()!=null ) {
+            result= new CdfFileRecordIterator( info, start, stop, params, cdf.getFile() ); // reader from CdfReaderCache
+        } else {
+            result= new CdfFileRecordIterator( info, start, stop, params, cdf.openReader() );
+        }
+        result.setCacheKey( granule.modified==Long.MIN_VALUE ? filename : filename + "@" + granule.modified );
+        return result;
+    }
+    
     @Override
     public Iterator<HapiRecord> getIterator(int[] start, int[] stop, String[] params) {
         try {
             logger.entering("EsdcRecordSource","getIterator");
-            String starts= String.format( "%4d-%02d-%02dT%02d:%02d:%02d.%01d", start[0], start[1], start[2], start[3], start[4], start[5], start[6] );
-            String stops= String.format( "%4d-%02d-%02dT%02d:%02d:%02d.%01d", stop[0], stop[1], stop[2], stop[3], stop[4], stop[5], stop[6]);
-            String key= starts + "/" + stops;
-            String filename= files.get(key);
-            if ( filename==null ) {
+            List<GranuleDescriptor> group= takePendingGranules( start, stop );
+            if ( group==null ) {
                 throw new IllegalStateException("this shouldn't happen");
             }
             
-            logger.log(Level.FINE, "getting CDF file {0}...", filename);
-            File cdfFile= getCdfFile(filename);
-            logger.log(Level.FINE, "got CDF file {0}.", cdfFile);
+            int[] trimStart= requestStart!=null ? requestStart : start;
+            int[] trimStop= requestStop!=null ? requestStop : stop;
+            
+            List<CdfFileRecordIterator> iterators= new ArrayList<>( group.size() );
+            try {
+                for ( GranuleDescriptor granule: group ) {
+                    iterators.add( openGranule( granule, trimStart, trimStop, params ) );
+                }
+            } catch ( IOException | CDFException.ReaderError | RuntimeException ex ) {
+                for ( CdfFileRecordIterator iter: iterators ) {
+                    iter.close(); // return the readers of the granules already opened.
+                }
+                throw ex;
+            }
             
-            CdfFileRecordIterator result= new CdfFileRecordIterator( info, start, stop, params, cdfFile );
+            if ( lastMerge!=null ) {
+                lastMerge.close();
+            }
+            long after= lastMerge==null ? Long.MIN_VALUE : lastMerge.getLastTime();
+            if ( lastMerge!=null && lastMerge.getDroppedCount()>0 ) {
+                logger.log(Level.FINE, "dropped {0} records which were repeated or out of order", lastMerge.getDroppedCount());
+            }
+            MergingRecordIterator result= new MergingRecordIterator( iterators, after );
+            lastMerge= result;
             logger.exiting("EsdcRecordSource","getIterator");
             return result;
         
@@ -231,6 +1132,74 @@ public class EsdcRecordSource extends AbstractHapiRecordSource {
         
     }
     
+    /**
+     * the size of the buffer of rows written by writeBinary.  This is set with the system
+     * property esdc.binary.bufferBytes.
+     */
+    private static final int BINARY_BUFFER_BYTES= Integer.parseInt( System.getProperty( "esdc.binary.bufferBytes", "1048576" ) );
+    
+    /**
+     * write the records of the interval as HAPI binary, going from the arrays read from the 
+     * CDF files straight into rows of a large buffer, one column at a time, which is written
+     * to the stream when it is full.  This gives the same bytes as the records of getIterator 
+     * written by the server's binary formatter, but no HapiRecord, Strings or arrays are made
+     * for each record.  The server must call this in place of getIterator for format=binary,
+     * and nothing calls it yet.  The batches and the prefetch are cancelled with doFinalize
+     * when this returns, so the record source is used for one call only.
+     * @param start the seven-component start time
+     * @param stop the seven-component stop time
+     * @param params the parameters, with the time tag first.
+     * @param out the stream, which is not closed.
+     * @return the number of records written.
+     * @throws IOException when the stream cannot be written.
+     */
+    public long writeBinary( int[] start, int[] stop, String[] params, OutputStream out ) throws IOException {
+        ByteBuffer buffer= ByteBuffer.allocate( BINARY_BUFFER_BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+        long count= 0;
+        try {
+            Iterator<int[]> granules= getGranuleIterator( start, stop );
+            while ( granules.hasNext() ) {
+                int[] granule= granules.next();
+                MergingRecordIterator iter= (MergingRecordIterator)getIterator( 
+                    TimeUtil.getStartTime(granule), TimeUtil.getStopTime(granule), params );
+                try {
+                    while ( iter.hasNext() ) {
+                        int n= iter.writeBinary( buffer );
+                        if ( n==0 ) {
+                            if ( buffer.position()==0 ) { 
+                                // one row is bigger than the buffer.
+                                buffer= ByteBuffer.allocate( buffer.capacity()*2 ).order( ByteOrder.LITTLE_ENDIAN );
+                            } else {
+                                out.write( buffer.array(), 0, buffer.position() );
+                                buffer.clear();
+                            }
+                        }
+                        count+= n;
+                    }
+                } finally {
+                    iter.close(); // release the readers when the stream fails, too.
+                }
+            }
+            out.write( buffer.array(), 0, buffer.position() );
+            out.flush();
+            return count;
+        } finally {
+            doFinalize();
+        }
+    }
+    
+    @Override
+    public void doFinalize() {
+        if ( lastMerge!=null ) {
+            lastMerge.close();
+        }
+        cancelBatches();
+        if ( prefetcher!=null ) {
+            prefetcher.cancel();
+            prefetcher= null;
+        }
+    }
+    
     public static void main( String[] args ) throws ParseException, IOException, JSONException, CDFException.ReaderError {
         //String id= "solo_L2_rpw-lfr-surv-asm";
         //String id= "solo_L2_mag-srf";
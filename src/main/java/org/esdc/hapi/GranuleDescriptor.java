@@ -0,0 +1,88 @@
+package org.esdc.hapi;
+
+/**
+ * Describes one granule (CDF file) from the SOAR TAP listing.  This is immutable, so it can be
+ * shared by the listing cache, the prefetch threads and the threads reading the data.
+ * @author jbf
+ */
+final class GranuleDescriptor {
+
+    /**
+     * the begin time, in nanoseconds since 1970-01-01T00:00Z ignoring leap seconds.
+     */
+    final long start;
+
+    /**
+     * the end time, in nanoseconds since 1970-01-01T00:00Z ignoring leap seconds.
+     */
+    final long stop;
+
+    /**
+     * the directory containing the file, like "/solo/data/L2/mag/2023/09".
+     */
+    final String filepath;
+
+    /**
+     * the filename, like "solo_L2_mag-rtn-normal_20230901_V01.cdf"
+     */
+    final String filename;
+
+    /**
+     * the version of the file, or -1 if the filename has no version.
+     */
+    final int version;
+
+    /**
+     * the time the file was put into the archive, in nanoseconds since 1970-01-01T00:00Z 
+     * ignoring leap seconds, or Long.MIN_VALUE if this is not known.
+     */
+    final long modified;
+
+    GranuleDescriptor( long start, long stop, String filepath, String filename ) {
+        this( start, stop, filepath, filename, Long.MIN_VALUE );
+    }
+
+    GranuleDescriptor( long start, long stop, String filepath, String filename, long modified ) {
+        this.start= start;
+        this.stop= stop;
+        this.filepath= filepath;
+        this.filename= filename;
+        this.version= CdfFileCache.getFileVersion(filename);
+        this.modified= modified;
+    }
+
+    /**
+     * return the filepath and filename separated by a slash, as used by getCdfFile.
+     * @return the path
+     */
+    String getPath() {
+        return filepath + "/" + filename;
+    }
+
+    /**
+     * return the fourteen-component time range of the granule.
+     * @return [ start Y, m, d, H, M, S, N, stop Y, m, d, H, M, S, N ]
+     */
+    int[] getTimeRange() {
+        return getTimeRange( start, stop );
+    }
+
+    /**
+     * return the fourteen-component time range.
+     * @param start the begin time, in nanoseconds since 1970-01-01T00:00Z ignoring leap seconds.
+     * @param stop the end time, in nanoseconds since 1970-01-01T00:00Z ignoring leap seconds.
+     * @return [ start Y, m, d, H, M, S, N, stop Y, m, d, H, M, S, N ]
+     */
+    static int[] getTimeRange( long start, long stop ) {
+        int[] result= new int[14];
+        System.arraycopy( Util.fromNanosecondsSince1970(start), 0, result, 0, 7 );
+        System.arraycopy( Util.fromNanosecondsSince1970(stop), 0, result, 7, 7 );
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return filename;
+    }
+
+}
@@ -0,0 +1,253 @@
+package org.esdc.hapi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory cache of the granule listings from the SOAR TAP server.  For each dataset, the
+ * time ranges which have been listed are kept as merged intervals along with the granules
+ * found.  A request within the listed intervals is answered from memory, and only the gaps
+ * which have not been listed are sent to the TAP server.  Intervals expire after a time
+ * (system property esdc.listing.maxAgeSeconds, default 3600) so that newly published files
+ * are seen.
+ * @author jbf
+ */
+class GranuleListingCache {
+
+    private static final Logger logger= Logger.getLogger("hapi.esdc");
+
+    /**
+     * the listing for a dataset is cleared when it has more than this many granules.
+     */
+    private static final int MAX_GRANULES_PER_DATASET= 200000;
+
+    /**
+     * whether the listing for a request came from memory.
+     */
+    enum Status {
+        /**
+         * the listing was entirely from memory.
+         */
+        HIT,
+        /**
+         * some of the listing was from memory, and the gaps were sent to the TAP server.
+         */
+        PARTIAL_HIT,
+        /**
+         * the entire listing was sent to the TAP server.
+         */
+        MISS
+    }
+
+    /**
+     * the method for listing granules from the TAP server.
+     */
+    interface ListingFetcher {
+        /**
+         * return the granules overlapping the interval.
+         * @param start seven-component start time
+         * @param stop seven-component stop time
+         * @return the granules
+         * @throws IOException
+         */
+        List<GranuleDescriptor> fetch( int[] start, int[] stop ) throws IOException;
+    }
+
+    private static class Interval {
+        long start;
+        long stop;
+        long fetchTimeMillis;
+        private Interval( long start, long stop, long fetchTimeMillis ) {
+            this.start= start;
+            this.stop= stop;
+            this.fetchTimeMillis= fetchTimeMillis;
+        }
+    }
+
+    private static class DatasetListing {
+        /**
+         * sorted, non-overlapping intervals which have been listed.
+         */
+        List<Interval> intervals= new ArrayList<>();
+        /**
+         * granules, keyed by filename.
+         */
+        Map<String,GranuleDescriptor> granules= new HashMap<>();
+    }
+
+    private static GranuleListingCache instance;
+
+    /**
+     * return the cache used by all the record sources in this process.
+     * @return the cache
+     */
+    static synchronized GranuleListingCache getInstance() {
+        if ( instance==null ) {
+            String s= System.getProperty("esdc.listing.maxAgeSeconds","3600");
+            instance= new GranuleListingCache( Long.parseLong(s) * 1000 );
+        }
+        return instance;
+    }
+
+    private final long maxAgeMillis;
+
+    private final Map<String,DatasetListing> listings= new HashMap<>();
+
+    GranuleListingCache( long maxAgeMillis ) {
+        this.maxAgeMillis= maxAgeMillis;
+    }
+
+    private synchronized DatasetListing getListing( String id ) {
+        DatasetListing listing= listings.get(id);
+        if ( listing==null ) {
+            listing= new DatasetListing();
+            listings.put( id, listing );
+        }
+        return listing;
+    }
+
+    /**
+     * return the granules overlapping the interval, sorted by begin time.  The status of
+     * the listing is put into status[0].
+     * @param id the dataset id
+     * @param start seven-component start time
+     * @param stop seven-component stop time
+     * @param fetcher the method for listing the granules of the gaps.
+     * @param status null or a one-element array for the status.
+     * @return the granules
+     * @throws IOException
+     */
+    List<GranuleDescriptor> getGranules( String id, int[] start, int[] stop, ListingFetcher fetcher, Status[] status ) throws IOException {
+        long s= Util.toNanosecondsSince1970(start);
+        long e= Util.toNanosecondsSince1970(stop);
+
+        DatasetListing listing= getListing(id);
+
+        synchronized ( listing ) {
+            long now= System.currentTimeMillis();
+            expire( listing, now );
+
+            List<long[]> gaps= new ArrayList<>();
+            long t= s;
+            for ( Interval interval: listing.intervals ) {
+                if ( interval.stop<=t ) continue;
+                if ( interval.start>=e ) break;
+                if ( interval.start>t ) {
+                    gaps.add( new long[] { t, interval.start } );
+                }
+                t= interval.stop;
+            }
+            if ( t<e ) {
+                gaps.add( new long[] { t, e } );
+            }
+
+            Status st;
+            if ( gaps.isEmpty() ) {
+                st= Status.HIT;
+            } else if ( gaps.size()==1 && gaps.get(0)[0]==s && gaps.get(0)[1]==e ) {
+                st= Status.MISS;
+            } else {
+                st= Status.PARTIAL_HIT;
+            }
+            logger.log(Level.FINE, "granule listing for {0}: {1}, {2} gaps", new Object[] { id, st, gaps.size() } );
+            if ( status!=null ) status[0]= st;
+
+            for ( long[] gap: gaps ) {
+                int[] gapStart= gap[0]==s ? start : Util.fromNanosecondsSince1970(gap[0]);
+                int[] gapStop= gap[1]==e ? stop : Util.fromNanosecondsSince1970(gap[1]);
+                for ( GranuleDescriptor g: fetcher.fetch( gapStart, gapStop ) ) {
+                    listing.granules.put( g.filename, g );
+                }
+                addInterval( listing, new Interval( gap[0], gap[1], now ) );
+            }
+
+            if ( listing.granules.size()>MAX_GRANULES_PER_DATASET ) {
+                logger.log(Level.FINE, "clearing granule listing cache for {0}", id);
+                List<GranuleDescriptor> result= select( listing, s, e );
+                listing.granules.clear();
+                listing.intervals.clear();
+                return result;
+            }
+
+            return select( listing, s, e );
+        }
+    }
+
+    /**
+     * return the granules overlapping [s,e), sorted by begin time.
+     */
+    private static List<GranuleDescriptor> select( DatasetListing listing, long s, long e ) {
+        List<GranuleDescriptor> result= new ArrayList<>();
+        for ( GranuleDescriptor g: listing.granules.values() ) {
+            if ( g.stop>s && g.start<e ) {
+                result.add(g);
+            }
+        }
+        result.sort( (g1,g2) -> Long.compare( g1.start, g2.start ) );
+        return result;
+    }
+
+    /**
+     * remove the expired intervals, and the granules which are no longer within any interval.
+     */
+    private void expire( DatasetListing listing, long now ) {
+        boolean removed= false;
+        for ( Iterator<Interval> iter= listing.intervals.iterator(); iter.hasNext(); ) {
+            Interval interval= iter.next();
+            if ( now-interval.fetchTimeMillis > maxAgeMillis ) {
+                iter.remove();
+                removed= true;
+            }
+        }
+        if ( removed ) {
+            for ( Iterator<GranuleDescriptor> iter= listing.granules.values().iterator(); iter.hasNext(); ) {
+                GranuleDescriptor g= iter.next();
+                boolean covered= false;
+                for ( Interval interval: listing.intervals ) {
+                    if ( g.stop>interval.start && g.start<interval.stop ) {
+                        covered= true;
+                        break;
+                    }
+                }
+                if ( !covered ) {
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * add the interval, merging it with overlapping and adjacent intervals.  The merged
+     * interval takes the oldest fetch time, so that it expires no later than its parts.
+     */
+    private static void addInterval( DatasetListing listing, Interval add ) {
+        List<Interval> result= new ArrayList<>( listing.intervals.size()+1 );
+        boolean added= false;
+        for ( Interval interval: listing.intervals ) {
+            if ( interval.stop<add.start ) {
+                result.add(interval);
+            } else if ( interval.start>add.stop ) {
+                if ( !added ) {
+                    result.add(add);
+                    added= true;
+                }
+                result.add(interval);
+            } else {
+                add.start= Math.min( add.start, interval.start );
+                add.stop= Math.max( add.stop, interval.stop );
+                add.fetchTimeMillis= Math.min( add.fetchTimeMillis, interval.fetchTimeMillis );
+            }
+        }
+        if ( !added ) {
+            result.add(add);
+        }
+        listing.intervals= result;
+    }
+
+}
@@ -0,0 +1,246 @@
+package org.esdc.hapi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Downloads the next few files of a granule listing in the background, while the records
+ * of the current file are being formatted.  The number of files downloaded ahead (the depth)
+ * adapts to the ratio of the time it takes to download a file to the time it takes to
+ * consume one, so that the network is kept busy without downloading far ahead of the client.
+ * The pool only reads ahead: when the client asks for a file whose download has not started,
+ * the file is loaded on the client's thread instead of waiting behind other prefetches.
+ * @param <T> the type of the loaded granule, such as File or CdfContent.
+ * @author jbf
+ */
+class GranulePrefetcher<T> {
+
+    private static final Logger logger= Logger.getLogger("hapi.esdc");
+
+    /**
+     * the maximum number of files downloaded ahead for one request.
+     */
+    private static final int MAX_DEPTH= 8;
+
+    /**
+     * the number of download threads shared by all requests.
+     */
+    private static final int THREAD_COUNT= 4;
+
+    /**
+     * weight given to the newest measurement in the moving averages.
+     */
+    private static final double ALPHA= 0.3;
+
+    private static ExecutorService executor;
+
+    private static synchronized ExecutorService getExecutor() {
+        if ( executor==null ) {
+            executor= Executors.newFixedThreadPool( THREAD_COUNT, (Runnable r) -> {
+                Thread t= new Thread( r, "esdc-prefetch" );
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * the method used to get each file, which might download the file.
+     * @param <T> the type of the loaded granule.
+     */
+    interface FileLoader<T> {
+        T load( String filename ) throws IOException;
+    }
+
+    private final FileLoader<T> loader;
+
+    private final List<String> filenames;
+
+    private final Map<String,Integer> indexes;
+
+    /**
+     * a download read ahead, which is run by the pool or, if the pool has not started it when
+     * the file is needed, by the client's thread.
+     */
+    private final class Prefetch implements Callable<T> {
+        private final String filename;
+        private final AtomicBoolean started= new AtomicBoolean();
+        private Future<T> future;
+
+        private Prefetch( String filename ) {
+            this.filename= filename;
+        }
+
+        /**
+         * mark the download as started, returning false if it was already started.
+         * @return true if the caller should load the file.
+         */
+        private boolean claim() {
+            return started.compareAndSet( false, true );
+        }
+
+        @Override
+        public T call() throws IOException {
+            if ( !claim() ) {
+                return null;
+            }
+            return timedLoad( filename );
+        }
+    }
+
+    /**
+     * the prefetches for each file, which are cleared as the files are used.
+     */
+    private final List<Prefetch> prefetches;
+
+    private int depth= 1;
+
+    /**
+     * the index of the next file which has not been submitted.
+     */
+    private int nextSubmit= 0;
+
+    /**
+     * moving average of the time to load a file, in milliseconds.
+     */
+    private double loadMillis= -1;
+
+    /**
+     * moving average of the time the client spends on each file, in milliseconds.
+     */
+    private double consumeMillis= -1;
+
+    private long lastReturnMillis= -1;
+
+    private boolean cancelled= false;
+
+    /**
+     * create the prefetcher for the files, and start downloading the first files.
+     * @param loader the method for loading each file
+     * @param filenames the files which will be requested, in order.
+     */
+    GranulePrefetcher( FileLoader<T> loader, List<String> filenames ) {
+        this.loader= loader;
+        this.filenames= filenames;
+        this.indexes= new HashMap<>();
+        for ( int i=0; i<filenames.size(); i++ ) {
+            indexes.put( filenames.get(i), i );
+        }
+        this.prefetches= new ArrayList<>( Collections.nCopies( filenames.size(), (Prefetch)null ) );
+        synchronized (this) {
+            submitThrough( depth );
+        }
+    }
+
+    /**
+     * submit downloads for files up to but not including index.
+     * @param index the index
+     */
+    private void submitThrough( int index ) {
+        index= Math.min( index, filenames.size() );
+        while ( nextSubmit<index && !cancelled ) {
+            Prefetch p= new Prefetch( filenames.get(nextSubmit) );
+            p.future= getExecutor().submit( p );
+            prefetches.set( nextSubmit, p );
+            nextSubmit++;
+        }
+    }
+
+    private T timedLoad( String filename ) throws IOException {
+        long t0= System.currentTimeMillis();
+        T f= loader.load( filename );
+        recordLoadTime( System.currentTimeMillis()-t0 );
+        return f;
+    }
+
+    private synchronized void recordLoadTime( long millis ) {
+        loadMillis= loadMillis<0 ? millis : ALPHA * millis + ( 1-ALPHA ) * loadMillis;
+    }
+
+    /**
+     * return the file, waiting for its download, and start downloads of the following files.
+     * @param filename the file, which must be one of the files in the listing.
+     * @return the file
+     * @throws IOException
+     */
+    T getFile( String filename ) throws IOException {
+        Integer index= indexes.get(filename);
+        if ( index==null ) {
+            return loader.load(filename);
+        }
+        Prefetch p;
+        long t0= System.currentTimeMillis();
+        synchronized (this) {
+            if ( lastReturnMillis>-1 ) {
+                long millis= t0-lastReturnMillis;
+                consumeMillis= consumeMillis<0 ? millis : ALPHA * millis + ( 1-ALPHA ) * consumeMillis;
+            }
+            if ( loadMillis>0 && consumeMillis>0 ) {
+                depth= (int)Math.ceil( loadMillis / Math.max( 1, consumeMillis ) );
+                depth= Math.max( 1, Math.min( MAX_DEPTH, depth ) );
+            }
+            p= prefetches.get(index);
+            prefetches.set( index, null ); // let the list be garbage collected as we go.
+            nextSubmit= Math.max( nextSubmit, index+1 ); // this file is loaded here if not submitted.
+            submitThrough( index+1+depth );
+            logger.log(Level.FINER, "prefetch depth {0} (load {1}ms, consume {2}ms)",
+                new Object[] { depth, (int)loadMillis, (int)consumeMillis } );
+        }
+        try {
+            if ( p==null ) {
+                return timedLoad( filename );
+            } else if ( p.claim() ) {
+                p.future.cancel(false);
+                return timedLoad( filename );
+            } else {
+                return p.future.get();
+            }
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            throw new IOException( "interrupted while waiting for "+filename, ex );
+        } catch ( ExecutionException ex ) {
+            Throwable cause= ex.getCause();
+            if ( cause instanceof IOException ) {
+                throw (IOException)cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        } finally {
+            synchronized (this) {
+                lastReturnMillis= System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * cancel the downloads which have not been used, for example when the request is
+     * abandoned.
+     */
+    synchronized void cancel() {
+        cancelled= true;
+        int count= 0;
+        for ( int i=0; i<prefetches.size(); i++ ) {
+            Prefetch p= prefetches.get(i);
+            if ( p!=null ) {
+                if ( p.future.cancel(true) ) count++;
+                prefetches.set( i, null );
+            }
+        }
+        if ( count>0 ) {
+            logger.log(Level.FINE, "cancelled {0} prefetches", count);
+        }
+    }
+}
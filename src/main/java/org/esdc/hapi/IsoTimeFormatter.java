@@ -0,0 +1,131 @@
+package org.esdc.hapi;
+
+/**
+ * Formats times as ISO-8601 strings like "2023-09-01T12:34:56.123456789Z", writing the digits
+ * into a reused buffer.  The date is only formatted when the day changes, so formatting the
+ * times of a file is mostly writing the nine to eighteen digits of the time of day.  Times
+ * may go backwards, since the date is found from the day number and not by stepping.
+ * @author jbf
+ */
+final class IsoTimeFormatter {
+
+    /**
+     * the number of characters in the longest form, "YYYY-MM-DDTHH:MM:SS.NNNNNNNNNZ".
+     */
+    static final int MAX_LENGTH= 30;
+
+    private static final long NANOS_PER_DAY= 86400000000000L;
+
+    private final int length;
+
+    private final char[] buffer= new char[MAX_LENGTH];
+
+    /**
+     * the day formatted into the buffer, in days since 1970-01-01.
+     */
+    private long day= Long.MIN_VALUE;
+
+    /**
+     * create a formatter for times of the length, which is the length of the time parameter
+     * in the info response.  The times are truncated to the length, so 24 formats milliseconds,
+     * 27 microseconds, and 30 nanoseconds.
+     * @param length the number of characters, including the Z, from 17 to 30.
+     */
+    IsoTimeFormatter( int length ) {
+        if ( length<17 || length>MAX_LENGTH ) {
+            throw new IllegalArgumentException("not supported: time length "+length);
+        }
+        this.length= length;
+        "0000-00-00T00:00:00.000000000Z".getChars( 0, MAX_LENGTH, buffer, 0 );
+    }
+
+    /**
+     * return the number of characters in each time.
+     * @return the length
+     */
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * format the time.
+     * @param epochDay the day, in days since 1970-01-01.
+     * @param nanosOfDay the nanoseconds since the start of the day, which is at least 86400
+     *   seconds during a leap second, which is formatted as second 60.
+     * @return the time, like "2023-09-01T12:34:56.123Z"
+     */
+    String format( long epochDay, long nanosOfDay ) {
+        fill( epochDay, nanosOfDay );
+        return new String( buffer, 0, length );
+    }
+
+    /**
+     * format the time into the buffer as ASCII bytes.
+     * @param epochDay the day, in days since 1970-01-01.
+     * @param nanosOfDay the nanoseconds since the start of the day.
+     * @param dest the destination
+     * @param offset the position of the first character in dest.
+     */
+    void format( long epochDay, long nanosOfDay, byte[] dest, int offset ) {
+        fill( epochDay, nanosOfDay );
+        for ( int i=0; i<length; i++ ) {
+            dest[offset+i]= (byte)buffer[i];
+        }
+    }
+
+    private void fill( long epochDay, long nanosOfDay ) {
+        if ( epochDay!=day ) {
+            setDay( epochDay );
+        }
+        int seconds;
+        int nanos;
+        if ( nanosOfDay>=NANOS_PER_DAY ) { // leap second
+            seconds= 86399;
+            nanos= (int)( nanosOfDay - NANOS_PER_DAY );
+            buffer[17]= '6';
+            buffer[18]= '0';
+        } else {
+            seconds= (int)( nanosOfDay / 1000000000L );
+            nanos= (int)( nanosOfDay - seconds * 1000000000L );
+            int s= seconds % 60;
+            buffer[17]= (char)( '0' + s / 10 );
+            buffer[18]= (char)( '0' + s % 10 );
+        }
+        int minutes= seconds / 60;
+        int h= minutes / 60;
+        int m= minutes % 60;
+        buffer[11]= (char)( '0' + h / 10 );
+        buffer[12]= (char)( '0' + h % 10 );
+        buffer[14]= (char)( '0' + m / 10 );
+        buffer[15]= (char)( '0' + m % 10 );
+        for ( int i=28; i>19; i-- ) {
+            buffer[i]= (char)( '0' + nanos % 10 );
+            nanos/= 10;
+        }
+        buffer[length-1]= 'Z';
+    }
+
+    /**
+     * format the date into the buffer.  This is the days-to-civil algorithm of Howard Hinnant.
+     */
+    private void setDay( long epochDay ) {
+        long z= epochDay + 719468;
+        long era= Math.floorDiv( z, 146097 );
+        long doe= z - era * 146097;
+        long yoe= ( doe - doe/1460 + doe/36524 - doe/146096 ) / 365;
+        long doy= doe - ( 365*yoe + yoe/4 - yoe/100 );
+        long mp= ( 5*doy + 2 ) / 153;
+        int d= (int)( doy - ( 153*mp + 2 )/5 + 1 );
+        int m= (int)( mp < 10 ? mp+3 : mp-9 );
+        int y= (int)( yoe + era * 400 + ( m <= 2 ? 1 : 0 ) );
+        buffer[0]= (char)( '0' + y / 1000 % 10 );
+        buffer[1]= (char)( '0' + y / 100 % 10 );
+        buffer[2]= (char)( '0' + y / 10 % 10 );
+        buffer[3]= (char)( '0' + y % 10 );
+        buffer[5]= (char)( '0' + m / 10 );
+        buffer[6]= (char)( '0' + m % 10 );
+        buffer[8]= (char)( '0' + d / 10 );
+        buffer[9]= (char)( '0' + d % 10 );
+        day= epochDay;
+    }
+}
@@ -0,0 +1,135 @@
+package org.esdc.hapi;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import org.hapiserver.HapiRecord;
+
+/**
+ * Merges the records of granules which overlap in time, so they come out in time order.
+ * Some datasets have files which overlap, for example when a file covers a day plus a few
+ * minutes of the next day, and reading them one after the other would send records out of
+ * order and twice.  The iterators are kept in a heap ordered by the time of their next
+ * record, so only one record of each file is looked at ahead, and records at or before the
+ * last record sent are dropped, which also removes the duplicates at the seams between files.
+ * The times are compared as numbers, see CdfFileRecordIterator.peekTime.
+ * @author jbf
+ */
+class MergingRecordIterator implements Iterator<HapiRecord> {
+
+    private final PriorityQueue<CdfFileRecordIterator> heads;
+
+    /**
+     * the time of the last record sent.
+     */
+    private long lastTime;
+
+    private long droppedCount;
+
+    /**
+     * merge the records of the iterators.
+     * @param iterators the iterators for each file.
+     * @param after only records after this time are sent, which is the last time sent for
+     *    the previous group of files, or Long.MIN_VALUE.
+     */
+    MergingRecordIterator( List<CdfFileRecordIterator> iterators, long after ) {
+        this.heads= new PriorityQueue<>( Math.max( 1, iterators.size() ),
+            ( CdfFileRecordIterator a, CdfFileRecordIterator b ) -> Long.compare( a.peekTime(), b.peekTime() ) );
+        for ( CdfFileRecordIterator iter: iterators ) {
+            if ( iter.hasNext() ) {
+                heads.add(iter);
+            }
+        }
+        this.lastTime= after;
+    }
+
+    @Override
+    public boolean hasNext() {
+        // records are skipped here, but not read, so that a record returned by next, which 
+        // may be reused by its iterator in cursor mode, is not changed.
+        while ( !heads.isEmpty() ) {
+            CdfFileRecordIterator iter= heads.peek();
+            if ( iter.peekTime()>lastTime ) {
+                return true;
+            }
+            heads.poll();
+            iter.skip();
+            droppedCount++;
+            if ( iter.hasNext() ) {
+                heads.add(iter);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public HapiRecord next() {
+        if ( !hasNext() ) {
+            throw new NoSuchElementException();
+        }
+        CdfFileRecordIterator iter= heads.poll();
+        lastTime= iter.peekTime();
+        HapiRecord result= iter.next();
+        if ( iter.hasNext() ) {
+            heads.add(iter);
+        }
+        return result;
+    }
+
+    /**
+     * write the next records as HAPI binary rows into the buffer, a run of records of one
+     * file at a time, until the buffer has no room for another row or there are no more records.
+     * @param buffer the little-endian buffer, backed by an array, written from its position.
+     * @return the number of records written.
+     * @see CdfFileRecordIterator#writeBinary(java.nio.ByteBuffer, long) 
+     */
+    int writeBinary( ByteBuffer buffer ) {
+        int total= 0;
+        while ( hasNext() ) {
+            CdfFileRecordIterator iter= heads.poll();
+            // records of this file can be written until the next record of another file.
+            long until= heads.isEmpty() ? Long.MAX_VALUE : heads.peek().peekTime();
+            int n= iter.writeBinary( buffer, until );
+            if ( n>0 ) {
+                lastTime= iter.getLastWrittenTime();
+                total+= n;
+            }
+            if ( iter.hasNext() ) {
+                heads.add(iter);
+            }
+            if ( n==0 ) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * close the iterators of the files, returning their readers, when the records are not
+     * all read.
+     */
+    void close() {
+        for ( CdfFileRecordIterator iter: heads ) {
+            iter.close();
+        }
+        heads.clear();
+    }
+
+    /**
+     * return the time of the last record sent, which is where the next group of files continues.
+     * @return the time, or the time passed into the constructor if no records were sent.
+     */
+    long getLastTime() {
+        return lastTime;
+    }
+
+    /**
+     * return the number of records dropped because they were not after the last record sent.
+     * @return the number of records dropped
+     */
+    long getDroppedCount() {
+        return droppedCount;
+    }
+}
@@ -0,0 +1,513 @@
+package org.esdc.hapi;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fetches only the parts of a remote CDF file which are needed to read some of its variables,
+ * using HTTP Range requests.  The descriptor records (CDR, GDR, the attributes and the variable
+ * descriptors) are fetched, and then the VXR index tree and the VVR or CVVR data records of the
+ * requested variables only.  The fetched bytes are written at their offsets in a sparse local
+ * file of the full length, which the CDF reader opens as usual, and the fetched ranges are
+ * recorded in a sidecar file (name.ranges) so that a later request for other variables fetches
+ * only what is missing.  The wide SOAR products, like solo_L2_rpw-lfr-surv-swf-b, have dozens
+ * of variables but a request usually wants only the time tags and one or two others.
+ *
+ * Only uncompressed version 3 CDF files are read this way.  For compressed files, where the
+ * whole file is one compressed block, and for version 2 files, fetch returns false and the
+ * caller should download the whole file.
+ *
+ * See https://spdf.gsfc.nasa.gov/pub/software/cdf/doc/cdf391/cdf391ifd.pdf for the layout of
+ * the records.
+ * @author jbf
+ */
+class PartialCdfFetcher {
+
+    private static final Logger logger= Logger.getLogger("hapi.esdc");
+
+    /**
+     * ranges are fetched in multiples of this, so that small records near each other are
+     * fetched together.
+     */
+    private static final int BLOCK_SIZE= 65536;
+
+    private static final String RANGES_HEADER= "# esdc-hapi partial cdf v1";
+
+    private static final int CDF3_MAGIC= 0xCDF30001;
+    private static final int UNCOMPRESSED_MAGIC= 0x0000FFFF;
+
+    private static final int GDR= 2;
+    private static final int RVDR= 3;
+    private static final int ADR= 4;
+    private static final int VXR= 6;
+    private static final int VVR= 7;
+    private static final int ZVDR= 8;
+    private static final int CVVR= 13;
+
+    /**
+     * VDR flag bit for a compressed variable, which has a CPR.
+     */
+    private static final int VDR_FLAG_COMPRESSED= 4;
+
+    /**
+     * locks so that only one thread fetches into each file, chosen by the hash of the file name.
+     */
+    private static final Object[] LOCKS= new Object[64];
+    static {
+        for ( int i=0; i<LOCKS.length; i++ ) {
+            LOCKS[i]= new Object();
+        }
+    }
+
+    private static Object getLock( File file ) {
+        return LOCKS[ Math.floorMod( file.getPath().hashCode(), LOCKS.length ) ];
+    }
+
+    private final URL url;
+    private final File file;
+    private final File rangesFile;
+
+    /**
+     * sorted, non-overlapping ranges [start,end) which are in the local file.
+     */
+    private final List<long[]> ranges= new ArrayList<>();
+
+    private long length= -1;
+
+    private RandomAccessFile raf;
+
+    private long bytesFetched;
+    private int requestCount;
+
+    /**
+     * create the fetcher for the remote file.
+     * @param url the remote file, which must support Range requests.
+     * @param file the local sparse file.
+     */
+    PartialCdfFetcher( URL url, File file ) {
+        this.url= url;
+        this.file= file;
+        this.rangesFile= getRangesFile(file);
+    }
+
+    private static File getRangesFile( File file ) {
+        return new File( file.getPath()+".ranges" );
+    }
+
+    /**
+     * return true if the file is a partially fetched CDF.
+     * @param file the file
+     * @return true if the file has a ranges sidecar file.
+     */
+    static boolean isPartial( File file ) {
+        return getRangesFile(file).exists();
+    }
+
+    /**
+     * delete the sparse file and its ranges file.
+     * @param file the sparse file
+     */
+    static void delete( File file ) {
+        File r= getRangesFile(file);
+        if ( r.exists() && !r.delete() ) {
+            logger.log(Level.WARNING, "unable to delete {0}", r);
+        }
+        if ( file.exists() && !file.delete() ) {
+            logger.log(Level.WARNING, "unable to delete {0}", file);
+        }
+    }
+
+    /**
+     * fetch the parts of the remote file needed to read the variables.
+     * @param variables the variable names
+     * @param minLength files shorter than this are not read partially, since downloading
+     *    the whole file is as quick.
+     * @return true if the local file can be read for the variables, or false if the caller
+     *    should download the whole file.
+     * @throws IOException
+     */
+    boolean fetch( Collection<String> variables, long minLength ) throws IOException {
+        synchronized ( getLock(file) ) {
+            try {
+                return fetchImpl( variables, minLength );
+            } finally {
+                if ( raf!=null ) {
+                    raf.close();
+                    raf= null;
+                }
+            }
+        }
+    }
+
+    private boolean fetchImpl( Collection<String> variables, long minLength ) throws IOException {
+        readRanges();
+        long t0= System.currentTimeMillis();
+
+        if ( length==-1 ) {
+            // the first request also tells us the length of the file.
+            if ( !fetchFirstBlock( minLength ) ) {
+                delete(file);
+                return false;
+            }
+        } else {
+            raf= new RandomAccessFile( file, "rw" );
+        }
+
+        try {
+            if ( readInt(0)!=CDF3_MAGIC || readInt(4)!=UNCOMPRESSED_MAGIC ) {
+                logger.log(Level.FINE, "not an uncompressed version 3 CDF, downloading whole file: {0}", url);
+                raf.close();
+                raf= null;
+                delete(file);
+                return false;
+            }
+
+            long cdr= 8;
+            ensureRecord( cdr );
+            long gdr= readLong( cdr+12 );
+            ensureRecord( gdr );
+            checkType( gdr, GDR );
+            long rVDRhead= readLong( gdr+12 );
+            long zVDRhead= readLong( gdr+20 );
+            long adrHead= readLong( gdr+28 );
+
+            // attributes, which are read when the file is opened.
+            for ( long adr= adrHead; adr!=0; adr= readLong( adr+12 ) ) {
+                ensureRecord( adr );
+                checkType( adr, ADR );
+                for ( long aedr= readLong( adr+20 ); aedr!=0; aedr= readLong( aedr+12 ) ) {
+                    ensureRecord( aedr );
+                }
+                for ( long aedr= readLong( adr+48 ); aedr!=0; aedr= readLong( aedr+12 ) ) {
+                    ensureRecord( aedr );
+                }
+            }
+
+            // variable descriptors, which are read when the file is opened, and the data
+            // of the requested variables.
+            Set<String> wanted= new HashSet<>(variables);
+            for ( long head: new long[] { rVDRhead, zVDRhead } ) {
+                for ( long vdr= head; vdr!=0; vdr= readLong( vdr+12 ) ) {
+                    ensureRecord( vdr );
+                    int type= readInt( vdr+8 );
+                    if ( type!=RVDR && type!=ZVDR ) {
+                        throw new IOException( "expected VDR at "+vdr );
+                    }
+                    int flags= readInt( vdr+44 );
+                    if ( ( flags & VDR_FLAG_COMPRESSED )!=0 ) {
+                        long cpr= readLong( vdr+72 );
+                        if ( cpr!=0 && cpr!=-1 ) ensureRecord( cpr );
+                    }
+                    String name= readName( vdr+84 );
+                    if ( wanted.remove(name) ) {
+                        long vxr= readLong( vdr+28 );
+                        if ( vxr!=0 ) {
+                            fetchVxrTree( vxr );
+                        }
+                    }
+                }
+            }
+            if ( !wanted.isEmpty() ) {
+                logger.log(Level.FINE, "variables not found in {0}: {1}", new Object[] { url, wanted } );
+            }
+        } finally {
+            writeRanges();
+        }
+
+        logger.log(Level.FINE, "fetched {0} bytes of {1} in {2} requests ({3}ms): {4}",
+            new Object[] { bytesFetched, length, requestCount, System.currentTimeMillis()-t0, url } );
+        return true;
+    }
+
+    /**
+     * fetch the VXR records and the data records they point to.
+     */
+    private void fetchVxrTree( long vxr ) throws IOException {
+        for ( ; vxr!=0; vxr= readLong( vxr+12 ) ) {
+            ensureRecord( vxr );
+            checkType( vxr, VXR );
+            int nentries= readInt( vxr+20 );
+            int nused= readInt( vxr+24 );
+            long offsets= vxr + 28 + 8L * nentries;
+            for ( int i=0; i<nused; i++ ) {
+                long offset= readLong( offsets + 8L * i );
+                ensureRecord( offset );
+                int type= readInt( offset+8 );
+                if ( type==VXR ) {
+                    fetchVxrTree( offset );
+                } else if ( type!=VVR && type!=CVVR ) {
+                    throw new IOException( "unexpected record type "+type+" at "+offset );
+                }
+            }
+        }
+    }
+
+    private void checkType( long offset, int type ) throws IOException {
+        int t= readInt( offset+8 );
+        if ( t!=type ) {
+            throw new IOException( "expected record type "+type+" but found "+t+" at "+offset );
+        }
+    }
+
+    /**
+     * make sure the whole record at the offset is in the local file, reading its size first.
+     */
+    private void ensureRecord( long offset ) throws IOException {
+        ensure( offset, 12 );
+        long size= readLong( offset );
+        if ( size<12 || offset+size>length ) {
+            throw new IOException( "bad record size "+size+" at "+offset );
+        }
+        ensure( offset, size );
+    }
+
+    private long readLong( long offset ) throws IOException {
+        ensure( offset, 8 );
+        raf.seek( offset );
+        return raf.readLong();
+    }
+
+    private int readInt( long offset ) throws IOException {
+        ensure( offset, 4 );
+        raf.seek( offset );
+        return raf.readInt();
+    }
+
+    private String readName( long offset ) throws IOException {
+        ensure( offset, 256 );
+        byte[] b= new byte[256];
+        raf.seek( offset );
+        raf.readFully( b );
+        int n= 0;
+        while ( n<b.length && b[n]!=0 ) n++;
+        return new String( b, 0, n, StandardCharsets.US_ASCII );
+    }
+
+    /**
+     * request the first block, which contains the CDR and GDR, and get the length of the file
+     * from the Content-Range.
+     * @return false if the server does not support Range requests or the file is short.
+     */
+    private boolean fetchFirstBlock( long minLength ) throws IOException {
+        URLConnection connection= openRange( 0, BLOCK_SIZE );
+        if ( !( connection instanceof HttpURLConnection )
+                || ((HttpURLConnection)connection).getResponseCode()!=HttpURLConnection.HTTP_PARTIAL ) {
+            logger.log(Level.FINE, "server does not support Range requests: {0}", url);
+            disconnect( connection );
+            return false;
+        }
+        String contentRange= connection.getHeaderField("Content-Range");
+        int i= contentRange==null ? -1 : contentRange.lastIndexOf('/');
+        if ( i==-1 || contentRange.endsWith("*") ) {
+            disconnect( connection );
+            return false;
+        }
+        length= Long.parseLong( contentRange.substring(i+1).trim() );
+        if ( length<minLength ) {
+            logger.log(Level.FINE, "file is short, downloading whole file: {0}", url);
+            disconnect( connection );
+            return false;
+        }
+        File parent= file.getParentFile();
+        if ( parent!=null && !parent.exists() && !parent.mkdirs() ) {
+            throw new IOException( "unable to make directory "+parent );
+        }
+        raf= new RandomAccessFile( file, "rw" );
+        raf.setLength( length );
+        copy( connection, 0, Math.min( BLOCK_SIZE, length ) );
+        return true;
+    }
+
+    /**
+     * make sure the bytes [offset,offset+len) are in the local file, fetching the missing
+     * parts in whole blocks.
+     */
+    private void ensure( long offset, long len ) throws IOException {
+        long start= offset - offset % BLOCK_SIZE;
+        long end= Math.min( length, ( ( offset+len+BLOCK_SIZE-1 ) / BLOCK_SIZE ) * BLOCK_SIZE );
+        long t= start;
+        for ( long[] r: new ArrayList<>(ranges) ) {
+            if ( r[1]<=t ) continue;
+            if ( r[0]>=end ) break;
+            if ( r[0]>t ) {
+                fetchRange( t, r[0] );
+            }
+            t= Math.max( t, r[1] );
+            if ( t>=end ) return;
+        }
+        if ( t<end ) {
+            fetchRange( t, end );
+        }
+    }
+
+    private void fetchRange( long start, long end ) throws IOException {
+        URLConnection connection= openRange( start, end );
+        if ( !( connection instanceof HttpURLConnection )
+                || ((HttpURLConnection)connection).getResponseCode()!=HttpURLConnection.HTTP_PARTIAL ) {
+            disconnect( connection );
+            throw new IOException( "Range request was not honored by "+url );
+        }
+        copy( connection, start, end );
+    }
+
+    private URLConnection openRange( long start, long end ) throws IOException {
+        URLConnection connection= url.openConnection();
+        connection.setConnectTimeout(30000);
+        connection.setReadTimeout(60000);
+        connection.setRequestProperty( "Range", "bytes="+start+"-"+(end-1) );
+        requestCount++;
+        return connection;
+    }
+
+    private static void disconnect( URLConnection connection ) {
+        if ( connection instanceof HttpURLConnection ) {
+            ((HttpURLConnection)connection).disconnect();
+        }
+    }
+
+    /**
+     * copy the response into the local file at start, and record the range.
+     */
+    private void copy( URLConnection connection, long start, long end ) throws IOException {
+        byte[] buffer= new byte[BLOCK_SIZE];
+        long position= start;
+        try ( InputStream in= connection.getInputStream() ) {
+            while ( position<end ) {
+                int n= in.read( buffer, 0, (int)Math.min( buffer.length, end-position ) );
+                if ( n==-1 ) {
+                    throw new IOException( "response ended at "+position+" of "+start+"-"+end );
+                }
+                raf.seek( position );
+                raf.write( buffer, 0, n );
+                position+= n;
+            }
+        }
+        bytesFetched+= end-start;
+        addRange( start, end );
+    }
+
+    private void addRange( long start, long end ) {
+        List<long[]> result= new ArrayList<>( ranges.size()+1 );
+        boolean added= false;
+        for ( long[] r: ranges ) {
+            if ( r[1]<start ) {
+                result.add(r);
+            } else if ( r[0]>end ) {
+                if ( !added ) {
+                    result.add( new long[] { start, end } );
+                    added= true;
+                }
+                result.add(r);
+            } else {
+                start= Math.min( start, r[0] );
+                end= Math.max( end, r[1] );
+            }
+        }
+        if ( !added ) {
+            result.add( new long[] { start, end } );
+        }
+        ranges.clear();
+        ranges.addAll(result);
+    }
+
+    /**
+     * read the ranges file.  When the local file is missing or does not match, the ranges
+     * are discarded.
+     */
+    private void readRanges() throws IOException {
+        ranges.clear();
+        length= -1;
+        if ( !rangesFile.exists() ) {
+            return;
+        }
+        if ( !file.exists() ) {
+            delete(file);
+            return;
+        }
+        try ( BufferedReader r= new BufferedReader( new FileReader(rangesFile) ) ) {
+            String line= r.readLine();
+            if ( line==null || !line.startsWith(RANGES_HEADER) ) {
+                throw new IOException( "bad ranges file" );
+            }
+            long len= Long.parseLong( line.substring(RANGES_HEADER.length()).trim() );
+            if ( len!=file.length() ) {
+                throw new IOException( "ranges file does not match file length" );
+            }
+            for ( line= r.readLine(); line!=null; line= r.readLine() ) {
+                String[] ss= line.split("\t");
+                ranges.add( new long[] { Long.parseLong(ss[0]), Long.parseLong(ss[1]) } );
+            }
+            length= len;
+        } catch ( IOException | RuntimeException ex ) {
+            logger.log(Level.INFO, "discarding partial file {0}: {1}", new Object[] { file, ex.getMessage() } );
+            ranges.clear();
+            length= -1;
+            delete(file);
+        }
+    }
+
+    private void writeRanges() {
+        if ( length==-1 ) return;
+        File tmpFile= new File( rangesFile.getPath()+".tmp" );
+        try ( PrintWriter w= new PrintWriter( new FileWriter(tmpFile) ) ) {
+            w.println( RANGES_HEADER + " " + length );
+            for ( long[] r: ranges ) {
+                w.println( r[0] + "\t" + r[1] );
+            }
+        } catch ( IOException ex ) {
+            logger.log(Level.WARNING, "unable to write ranges file", ex);
+            return;
+        }
+        if ( !tmpFile.renameTo(rangesFile) ) {
+            logger.log(Level.WARNING, "unable to rename ranges file {0}", tmpFile);
+        }
+    }
+
+    /**
+     * remove the least recently modified partial files until the files in the directory
+     * are within the budget.
+     * @param dir the directory of partial files
+     * @param maxBytes the budget, in bytes of file length.
+     */
+    static void trim( File dir, long maxBytes ) {
+        File[] ff= dir.listFiles( (File f) -> f.isFile() && getRangesFile(f).exists() );
+        if ( ff==null ) return;
+        Arrays.sort( ff, (File f1, File f2) -> Long.compare( f1.lastModified(), f2.lastModified() ) );
+        long total= 0;
+        for ( File f: ff ) {
+            total+= f.length();
+        }
+        for ( int i=0; i<ff.length-1 && total>maxBytes; i++ ) {
+            synchronized ( getLock(ff[i]) ) {
+                total-= ff[i].length();
+                delete( ff[i] );
+            }
+        }
+    }
+
+    /**
+     * return the number of bytes fetched by the last call to fetch.
+     * @return the number of bytes fetched
+     */
+    long getBytesFetched() {
+        return bytesFetched;
+    }
+}
@@ -0,0 +1,302 @@
+package org.esdc.hapi;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Retrieves several files from SOAR with one request, using a filename IN (...) query.  For
+ * datasets with small daily files, the overhead of each request is larger than the file,
+ * so retrieving a month of files with one request is much faster.  SOAR returns the files in
+ * an archive (zip or tar), which is unpacked as it is read, so each file is put into the cache
+ * and made available as soon as it arrives.
+ * @author jbf
+ */
+class SoarBatchRetriever {
+
+    private static final Logger logger= Logger.getLogger("hapi.esdc");
+
+    /**
+     * the number of threads making batch requests, shared by all requests.
+     */
+    private static final int THREAD_COUNT= 2;
+
+    /**
+     * signals that the file was not retrieved by the batch request, so the caller should
+     * retrieve it by itself.
+     */
+    static class NotRetrievedException extends IOException {
+        private static final long serialVersionUID= 1L;
+        NotRetrievedException( String message ) {
+            super(message);
+        }
+        NotRetrievedException( String message, Throwable cause ) {
+            super(message,cause);
+        }
+    }
+
+    /**
+     * a batch request which has been submitted.
+     */
+    static final class Batch {
+        private final Map<String,CompletableFuture<File>> futures;
+        private final AtomicBoolean started= new AtomicBoolean();
+        private Future<?> task;
+
+        private Batch( Map<String,CompletableFuture<File>> futures ) {
+            this.futures= futures;
+        }
+
+        private void run( CdfFileCache cache, String dataUrl ) {
+            if ( started.compareAndSet( false, true ) ) {
+                retrieve( cache, dataUrl, futures );
+            }
+        }
+
+        /**
+         * cancel the batch if it has not started, completing its futures with a 
+         * NotRetrievedException so that anyone waiting retrieves the files by themselves.
+         * A batch which has started is left to finish.
+         * @return true if the batch was cancelled.
+         */
+        boolean cancel() {
+            if ( !started.compareAndSet( false, true ) ) {
+                return false;
+            }
+            task.cancel(false);
+            for ( CompletableFuture<File> f: futures.values() ) {
+                f.completeExceptionally( new NotRetrievedException( "batch retrieval was cancelled" ) );
+            }
+            return true;
+        }
+
+        /**
+         * return true if the batch has finished or was cancelled.
+         * @return true if the batch is done.
+         */
+        boolean isDone() {
+            return task.isDone();
+        }
+    }
+
+    private static ExecutorService executor;
+
+    private static synchronized ExecutorService getExecutor() {
+        if ( executor==null ) {
+            executor= Executors.newFixedThreadPool( THREAD_COUNT, (Runnable r) -> {
+                Thread t= new Thread( r, "esdc-batch" );
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * return the URL for the files.
+     * @param dataUrl the SOAR data service, like "https://soar.esac.esa.int/soar-sl-tap/data"
+     * @param filenames the filenames, like "solo_L2_mag-rtn-normal-1-minute_20230901_V01.cdf"
+     * @return the URL
+     * @throws MalformedURLException
+     */
+    static URL getBatchUrl( String dataUrl, List<String> filenames ) throws MalformedURLException {
+        StringBuilder b= new StringBuilder( dataUrl );
+        b.append( "?retrieval_type=PRODUCT" );
+        b.append( "&QUERY=SELECT+filepath,filename" );
+        b.append( "+FROM+soar.v_sc_repository_file" );
+        b.append( "+WHERE+filename+IN+(" );
+        for ( int i=0; i<filenames.size(); i++ ) {
+            if ( i>0 ) b.append(",");
+            b.append("%27").append( filenames.get(i) ).append("%27");
+        }
+        b.append(")");
+        return new URL( b.toString() );
+    }
+
+    /**
+     * start the retrieval of the files in the background.  The future for each file is
+     * completed when the file is in the cache, or completed with a NotRetrievedException when
+     * the file was not in the response.
+     * @param cache the cache
+     * @param dataUrl the SOAR data service
+     * @param futures the futures for each filename.
+     * @return the batch, which can be cancelled before it starts.
+     */
+    static Batch submit( CdfFileCache cache, String dataUrl, Map<String,CompletableFuture<File>> futures ) {
+        Batch batch= new Batch( futures );
+        batch.task= getExecutor().submit( () -> batch.run( cache, dataUrl ) );
+        return batch;
+    }
+
+    /**
+     * retrieve the files into the cache.
+     * @param cache the cache
+     * @param dataUrl the SOAR data service
+     * @param futures the futures for each filename, which are all completed on return.
+     */
+    static void retrieve( CdfFileCache cache, String dataUrl, Map<String,CompletableFuture<File>> futures ) {
+        try {
+            URL url= getBatchUrl( dataUrl, new ArrayList<>( futures.keySet() ) );
+            logger.log(Level.FINE, "retrieving {0} files with one request", futures.size());
+            long t0= System.currentTimeMillis();
+            URLConnection connection= url.openConnection();
+            connection.setConnectTimeout(30000);
+            connection.setReadTimeout(60000);
+            try ( InputStream in= new BufferedInputStream( connection.getInputStream(), 65536 ) ) {
+                unpack( in, cache, dataUrl, futures );
+            }
+            logger.log(Level.FINE, "retrieved {0} files in {1}ms",
+                new Object[] { futures.size(), System.currentTimeMillis()-t0 } );
+        } catch ( IOException | RuntimeException ex ) {
+            logger.log(Level.INFO, "batch retrieval failed, files will be retrieved one at a time", ex);
+            for ( CompletableFuture<File> f: futures.values() ) {
+                f.completeExceptionally( new NotRetrievedException( "batch retrieval failed", ex ) );
+            }
+        } finally {
+            for ( Map.Entry<String,CompletableFuture<File>> e: futures.entrySet() ) {
+                e.getValue().completeExceptionally( new NotRetrievedException( "not in batch response: "+e.getKey() ) );
+            }
+        }
+    }
+
+    /**
+     * unpack the response, which is a zip archive, a tar archive, or a single CDF file.
+     */
+    private static void unpack( InputStream in, CdfFileCache cache, String dataUrl,
+            Map<String,CompletableFuture<File>> futures ) throws IOException {
+        in.mark(512);
+        byte[] magic= new byte[262];
+        int n= readFully( in, magic, 0, magic.length );
+        in.reset();
+        if ( n>=4 && magic[0]=='P' && magic[1]=='K' && magic[2]==3 && magic[3]==4 ) {
+            ZipInputStream zin= new ZipInputStream(in);
+            ZipEntry entry;
+            while ( ( entry= zin.getNextEntry() )!=null ) {
+                if ( !entry.isDirectory() ) {
+                    accept( getBaseName(entry.getName()), zin, -1, cache, dataUrl, futures );
+                }
+            }
+        } else if ( n>=262 && new String( magic, 257, 5, StandardCharsets.US_ASCII ).equals("ustar") ) {
+            unpackTar( in, cache, dataUrl, futures );
+        } else if ( futures.size()==1 ) {
+            accept( futures.keySet().iterator().next(), in, -1, cache, dataUrl, futures );
+        } else {
+            throw new IOException( "unrecognized response to batch request" );
+        }
+    }
+
+    private static void unpackTar( InputStream in, CdfFileCache cache, String dataUrl,
+            Map<String,CompletableFuture<File>> futures ) throws IOException {
+        byte[] header= new byte[512];
+        while ( true ) {
+            if ( readFully( in, header, 0, 512 )<512 ) {
+                return;
+            }
+            if ( header[0]==0 ) {
+                return; // end-of-archive marker
+            }
+            String name= getTarString( header, 0, 100 );
+            String prefix= getTarString( header, 345, 155 );
+            if ( prefix.length()>0 ) {
+                name= prefix + "/" + name;
+            }
+            long size= Long.parseLong( getTarString( header, 124, 12 ).trim(), 8 );
+            byte type= header[156];
+            if ( type=='0' || type==0 ) {
+                accept( getBaseName(name), in, size, cache, dataUrl, futures );
+            } else {
+                skipFully( in, size );
+            }
+            long padding= ( 512 - size % 512 ) % 512;
+            skipFully( in, padding );
+        }
+    }
+
+    /**
+     * copy the file from the stream into the cache and complete its future.  Files which were
+     * not requested are skipped.
+     * @param length the number of bytes, or -1 to read to the end of the stream.
+     */
+    private static void accept( String filename, InputStream in, long length, CdfFileCache cache,
+            String dataUrl, Map<String,CompletableFuture<File>> futures ) throws IOException {
+        CompletableFuture<File> future= futures.get(filename);
+        if ( future==null ) {
+            logger.log(Level.FINE, "skipping unexpected file in batch response: {0}", filename);
+            if ( length>=0 ) skipFully( in, length );
+            return;
+        }
+        File file= cache.getFile(filename);
+        File partFile= new File( file.getPath()+".part" );
+        byte[] buffer= new byte[65536];
+        long total= 0;
+        try ( OutputStream out= new FileOutputStream(partFile) ) {
+            while ( length<0 || total<length ) {
+                int len= length<0 ? buffer.length : (int)Math.min( buffer.length, length-total );
+                int n= in.read( buffer, 0, len );
+                if ( n==-1 ) {
+                    if ( length<0 ) break;
+                    throw new EOFException( "batch response ended within "+filename );
+                }
+                out.write( buffer, 0, n );
+                total+= n;
+            }
+        }
+        Files.move( partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        cache.put( filename, EsdcRecordSource.getProductUrl( dataUrl, filename ).toString() );
+        future.complete( file );
+    }
+
+    private static String getBaseName( String name ) {
+        int i= name.lastIndexOf('/');
+        return i==-1 ? name : name.substring(i+1);
+    }
+
+    private static String getTarString( byte[] header, int offset, int length ) {
+        int end= offset;
+        while ( end<offset+length && header[end]!=0 ) end++;
+        return new String( header, offset, end-offset, StandardCharsets.US_ASCII );
+    }
+
+    private static int readFully( InputStream in, byte[] buffer, int offset, int length ) throws IOException {
+        int total= 0;
+        while ( total<length ) {
+            int n= in.read( buffer, offset+total, length-total );
+            if ( n==-1 ) break;
+            total+= n;
+        }
+        return total;
+    }
+
+    private static void skipFully( InputStream in, long length ) throws IOException {
+        while ( length>0 ) {
+            long n= in.skip(length);
+            if ( n<=0 ) {
+                if ( in.read()==-1 ) throw new EOFException();
+                n= 1;
+            }
+            length-= n;
+        }
+    }
+}
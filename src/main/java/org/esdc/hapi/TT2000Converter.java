@@ -0,0 +1,188 @@
+package org.esdc.hapi;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Converts CDF_TT2000 times to UTC and back with integer arithmetic, so no precision is lost.
+ * The leap seconds are kept in a table of the TT2000 times where the number of leap seconds
+ * changes.  An array of times is converted in runs between these boundaries, so the table is
+ * only searched when a time leaves the run, and times within a leap second are given as
+ * second 60 of the last minute of the day.
+ * @author jbf
+ */
+final class TT2000Converter {
+
+    private static final Logger logger= Logger.getLogger("hapi.esdc");
+
+    private static final long NANOS_PER_DAY= 86400000000000L;
+
+    private static final long NANOS_PER_SECOND= 1000000000L;
+
+    /**
+     * add this to TT2000, less (leapSeconds-32) seconds, to get nanoseconds since 1970-01-01T00:00Z.
+     * TT2000 is from 2000-01-01T12:00 TT, which is 64.184 seconds ahead of UTC with 32 leap seconds.
+     */
+    private static final long TT2000_TO_1970= 946684800000000000L + 43200000000000L - 64184000000L;
+
+    /**
+     * the UTC day of each change in the number of leap seconds, in days since 1970-01-01,
+     * starting with 1972-01-01.
+     */
+    private static final long[] DAYS;
+
+    /**
+     * the number of leap seconds from each day.
+     */
+    private static final int[] LEAP_SECONDS;
+
+    /**
+     * the TT2000 time of the start of each day.
+     */
+    private static final long[] BOUNDARIES;
+
+    static {
+        List<long[]> table;
+        try {
+            table= readTable();
+        } catch ( IOException ex ) {
+            throw new RuntimeException("LeapSeconds file not available.  This should never happen since there is a leapSeconds file within code.",ex);
+        }
+        int n= table.size();
+        DAYS= new long[n];
+        LEAP_SECONDS= new int[n];
+        BOUNDARIES= new long[n];
+        for ( int i=0; i<n; i++ ) {
+            DAYS[i]= table.get(i)[0];
+            LEAP_SECONDS[i]= (int)table.get(i)[1];
+            BOUNDARIES[i]= DAYS[i] * NANOS_PER_DAY - TT2000_TO_1970 + ( LEAP_SECONDS[i] - 32 ) * NANOS_PER_SECOND;
+        }
+    }
+
+    private TT2000Converter() {
+    }
+
+    /**
+     * read the table from CdfLeapSeconds.txt, or the copy at NASA when this is not found.
+     * @return [ day since 1970, leap seconds ] for each line from 1972.
+     */
+    private static List<long[]> readTable() throws IOException {
+        URL url = TT2000Converter.class.getResource("CdfLeapSeconds.txt");
+        InputStream in;
+        try {
+            if ( url==null ) throw new IOException("CdfLeapSeconds.txt is not found");
+            in= url.openStream();
+        } catch ( IOException ex ) {
+            logger.log(Level.INFO,"unable to read internal leap seconds file: {0}", url);
+            url= new URL("https://cdf.gsfc.nasa.gov/html/CDFLeapSeconds.txt");
+            in= url.openStream();
+        }
+        List<long[]> result= new ArrayList<>();
+        try ( BufferedReader r = new BufferedReader( new InputStreamReader( in, StandardCharsets.US_ASCII ) ) ) {
+            String s;
+            while ( ( s= r.readLine() )!=null ) {
+                if ( s.startsWith(";") || s.trim().length()==0 ) {
+                    continue;
+                }
+                String[] ss = s.trim().split("\\s+");
+                int year= Integer.parseInt(ss[0]);
+                if ( year<1972 ) {
+                    continue;
+                }
+                long day= daysFromCivil( year, Integer.parseInt(ss[1]), Integer.parseInt(ss[2]) );
+                result.add( new long[] { day, (long)Double.parseDouble(ss[3]) } );
+            }
+        }
+        if ( result.isEmpty() ) {
+            throw new IOException("no leap seconds found in "+url);
+        }
+        return result;
+    }
+
+    /**
+     * return the days since 1970-01-01.  This is the days-from-civil algorithm of Howard Hinnant.
+     */
+    private static long daysFromCivil( int y, int m, int d ) {
+        y-= m<=2 ? 1 : 0;
+        long era= Math.floorDiv( y, 400 );
+        long yoe= y - era * 400;
+        long doy= ( 153 * ( m + ( m > 2 ? -3 : 9 ) ) + 2 ) / 5 + d - 1;
+        long doe= yoe * 365 + yoe/4 - yoe/100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    /**
+     * return the index of the last boundary at or before the TT2000 time, or 0 if the time
+     * is before all of them.
+     */
+    private static int findSegment( long tt ) {
+        int low= 0;
+        int high= BOUNDARIES.length-1;
+        while ( low<high ) {
+            int mid= ( low + high + 1 ) >>> 1;
+            if ( BOUNDARIES[mid]<=tt ) low= mid; else high= mid-1;
+        }
+        return low;
+    }
+
+    /**
+     * convert TT2000 times to UTC days and nanoseconds within the day.  Times within a leap
+     * second have nanoseconds of at least 86400 seconds.
+     * @param tt the TT2000 times
+     * @param offset the index of the first time to convert
+     * @param count the number of times
+     * @param epochDays the days since 1970-01-01, starting at index 0.
+     * @param nanosOfDay the nanoseconds since the start of the day, starting at index 0.
+     */
+    static void toUtc( long[] tt, int offset, int count, long[] epochDays, long[] nanosOfDay ) {
+        int i= offset;
+        int end= offset + count;
+        int j= 0;
+        while ( i<end ) {
+            int k= findSegment( tt[i] );
+            long low= k==0 ? Long.MIN_VALUE : BOUNDARIES[k];
+            long high= k+1<BOUNDARIES.length ? BOUNDARIES[k+1] - NANOS_PER_SECOND : Long.MAX_VALUE;
+            if ( tt[i]>=high ) { // within the leap second at the end of the day before DAYS[k+1]
+                epochDays[j]= DAYS[k+1] - 1;
+                nanosOfDay[j]= NANOS_PER_DAY + ( tt[i] - high );
+                i++;
+                j++;
+                continue;
+            }
+            long add= TT2000_TO_1970 - ( LEAP_SECONDS[k] - 32 ) * NANOS_PER_SECOND;
+            long t;
+            while ( i<end && ( t= tt[i] )>=low && t<high ) {
+                long nanos1970= t + add;
+                long day= Math.floorDiv( nanos1970, NANOS_PER_DAY );
+                epochDays[j]= day;
+                nanosOfDay[j]= nanos1970 - day * NANOS_PER_DAY;
+                i++;
+                j++;
+            }
+        }
+    }
+
+    /**
+     * convert the UTC time to TT2000.
+     * @param nanos1970 nanoseconds since 1970-01-01T00:00Z, ignoring leap seconds.
+     * @return the TT2000 time
+     */
+    static long fromUtc( long nanos1970 ) {
+        long day= Math.floorDiv( nanos1970, NANOS_PER_DAY );
+        int low= 0;
+        int high= DAYS.length-1;
+        while ( low<high ) {
+            int mid= ( low + high + 1 ) >>> 1;
+            if ( DAYS[mid]<=day ) low= mid; else high= mid-1;
+        }
+        return nanos1970 - TT2000_TO_1970 + ( LEAP_SECONDS[low] - 32 ) * NANOS_PER_SECOND;
+    }
+}
@@ -1,6 +1,25 @@
 
 package org.esdc.hapi;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.hapiserver.TimeUtil;
+
 /**
  * These are utilities which should probably be in SourceUtil of HapiServerBase,
  * but for now are available to this code.
@@ -27,6 +46,273 @@ public class Util {
         return result;
     }    
 
+    private static final Logger logger= Logger.getLogger("hapi.esdc");
+    
+    /**
+     * number of times a download is attempted before giving up.
+     */
+    private static final int DOWNLOAD_ATTEMPTS= 5;
+    
+    /**
+     * the delay before the first retry of a download, which doubles with each retry.
+     */
+    private static final long DOWNLOAD_RETRY_DELAY_MILLIS= 500;
+    
+    /**
+     * an HTTP response with an error code.
+     */
+    private static final class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int code;
+        private HttpStatusException( int code, URL url ) {
+            super( "HTTP "+code+" for "+url );
+            this.code= code;
+        }
+        /**
+         * return true if retrying may succeed, which is not so for client errors like 404,
+         * except for request timeout (408) and too many requests (429).
+         */
+        private boolean isTransient() {
+            return code<400 || code>=500 || code==408 || code==429;
+        }
+    }
+    
+    /**
+     * partial downloads older than this are not resumed, since the file may have changed.
+     */
+    private static final long RESUME_LIMIT_MILLIS= 3600000;
+    
+    private static final int DOWNLOAD_BUFFER_SIZE= 1024 * 1024;
+    
+    /**
+     * download the resource to the given file.  The data is written to a temporary file 
+     * (file.part) which is renamed to the file once the download is complete and its length 
+     * matches the Content-Length, so the file is never seen partially written.  When the 
+     * connection is dropped, the download is resumed using an HTTP Range request.  This is 
+     * to replace SourceUtil.downloadFile, which writes directly to the file.
+     * @param url the URL to load
+     * @param file name of the file where data should be written.
+     * @return the name of the file
+     * @throws IOException when the download fails after several attempts.
+     */
+    public static File downloadFile( URL url, File file ) throws IOException {
+        File partFile= new File( file.getPath()+".part" );
+        if ( partFile.exists() && System.currentTimeMillis()-partFile.lastModified() > RESUME_LIMIT_MILLIS ) {
+            if ( !partFile.delete() ) {
+                throw new IOException("unable to delete stale partial download "+partFile);
+            }
+        }
+        
+        IOException lastException= null;
+        for ( int attempt=0; attempt<DOWNLOAD_ATTEMPTS; attempt++ ) {
+            try {
+                if ( downloadPart( url, partFile ) ) {
+                    try {
+                        Files.move( partFile.toPath(), file.toPath(), 
+                            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+                    } catch ( AtomicMoveNotSupportedException ex ) {
+                        Files.move( partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+                    }
+                    return file;
+                }
+            } catch ( ClosedByInterruptException ex ) {
+                throw ex;
+            } catch ( HttpStatusException ex ) {
+                if ( !ex.isTransient() ) {
+                    throw ex;
+                }
+                logger.log(Level.INFO, "download of {0} failed, attempt {1}: {2}", 
+                    new Object[] { url, attempt+1, ex.getMessage() } );
+                lastException= ex;
+                pause( attempt );
+            } catch ( IOException ex ) {
+                logger.log(Level.INFO, "download of {0} interrupted at {1} bytes, attempt {2}: {3}", 
+                    new Object[] { url, partFile.length(), attempt+1, ex.getMessage() } );
+                lastException= ex;
+                pause( attempt );
+            }
+        }
+        throw new IOException( "download failed after "+DOWNLOAD_ATTEMPTS+" attempts: "+url, lastException );
+    }
+    
+    /**
+     * wait before retrying a download, longer after each attempt, unless it is the last attempt.
+     * @param attempt the attempt which failed, starting with 0.
+     * @throws ClosedByInterruptException when the thread is interrupted, as when the download is cancelled.
+     */
+    private static void pause( int attempt ) throws ClosedByInterruptException {
+        if ( attempt+1<DOWNLOAD_ATTEMPTS ) {
+            try {
+                Thread.sleep( DOWNLOAD_RETRY_DELAY_MILLIS << attempt );
+            } catch ( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                throw new ClosedByInterruptException();
+            }
+        }
+    }
+    
+    /**
+     * download the resource into memory, when it is no larger than maxBytes.  This is used 
+     * for small files, which are read directly from memory without writing them to disk.
+     * @param url the URL to load
+     * @param maxBytes the largest resource which is downloaded.
+     * @return the bytes, or null if the resource is larger than maxBytes.
+     * @throws IOException 
+     */
+    public static ByteBuffer downloadToBuffer( URL url, int maxBytes ) throws IOException {
+        URLConnection connection= url.openConnection();
+        connection.setConnectTimeout(30000);
+        connection.setReadTimeout(60000);
+        long contentLength= connection.getContentLengthLong();
+        if ( contentLength>maxBytes ) {
+            if ( connection instanceof HttpURLConnection ) {
+                ((HttpURLConnection)connection).disconnect();
+            }
+            return null;
+        }
+        byte[] bytes= new byte[ contentLength>-1 ? (int)contentLength : Math.min( maxBytes, 65536 ) ];
+        int position= 0;
+        try ( InputStream in= connection.getInputStream() ) {
+            while ( true ) {
+                if ( position==bytes.length ) {
+                    if ( contentLength>-1 || bytes.length==maxBytes ) {
+                        if ( in.read()==-1 ) break;
+                        if ( contentLength>-1 ) {
+                            throw new IOException( "more bytes than Content-Length from "+url );
+                        } else {
+                            return null;
+                        }
+                    }
+                    byte[] grow= new byte[ (int)Math.min( maxBytes, 2L * bytes.length ) ];
+                    System.arraycopy( bytes, 0, grow, 0, position );
+                    bytes= grow;
+                }
+                int n= in.read( bytes, position, bytes.length-position );
+                if ( n==-1 ) break;
+                position+= n;
+            }
+        }
+        if ( contentLength>-1 && position!=contentLength ) {
+            throw new IOException( "expected "+contentLength+" bytes but got "+position+" from "+url );
+        }
+        return ByteBuffer.wrap( bytes, 0, position );
+    }
+    
+    /**
+     * download or continue downloading the resource into partFile.
+     * @param url the URL to load
+     * @param partFile the file, which may contain the start of the resource already.
+     * @return true if the download is complete.
+     * @throws IOException 
+     */
+    private static boolean downloadPart( URL url, File partFile ) throws IOException {
+        long position= partFile.exists() ? partFile.length() : 0;
+        
+        URLConnection connection= url.openConnection();
+        connection.setConnectTimeout(30000);
+        connection.setReadTimeout(60000);
+        if ( position>0 ) {
+            connection.setRequestProperty( "Range", "bytes="+position+"-" );
+        }
+        
+        long expectedLength;
+        if ( connection instanceof HttpURLConnection ) {
+            int code= ((HttpURLConnection)connection).getResponseCode();
+            if ( code==HttpURLConnection.HTTP_PARTIAL ) {
+                logger.log(Level.FINE, "resuming download of {0} at {1}", new Object[] { url, position } );
+                expectedLength= getRangeTotal( connection.getHeaderField("Content-Range"), position, connection.getContentLengthLong() );
+            } else if ( code==416 && position>0 ) { // range not satisfiable, so we may already have it all
+                String total= connection.getHeaderField("Content-Range");
+                if ( total!=null && total.endsWith("/"+position) ) {
+                    return true;
+                }
+                return restart( partFile );
+            } else if ( code==HttpURLConnection.HTTP_OK ) {
+                position= 0;
+                expectedLength= connection.getContentLengthLong();
+            } else {
+                throw new HttpStatusException( code, url );
+            }
+        } else {
+            position= 0;
+            expectedLength= connection.getContentLengthLong();
+        }
+        
+        try ( InputStream in= connection.getInputStream();
+            ReadableByteChannel src= Channels.newChannel(in);
+            FileChannel dest= FileChannel.open( partFile.toPath(), 
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE ) ) {
+            dest.truncate(position);
+            dest.position(position);
+            ByteBuffer buffer= ByteBuffer.allocateDirect(DOWNLOAD_BUFFER_SIZE);
+            while ( src.read(buffer)!=-1 ) {
+                buffer.flip();
+                while ( buffer.hasRemaining() ) {
+                    dest.write(buffer);
+                }
+                buffer.clear();
+            }
+            position= dest.position();
+        }
+        
+        if ( expectedLength>-1 && position!=expectedLength ) {
+            throw new IOException( "expected "+expectedLength+" bytes but got "+position+" from "+url );
+        }
+        return true;
+    }
+    
+    private static boolean restart( File partFile ) throws IOException {
+        if ( !partFile.delete() ) {
+            throw new IOException("unable to delete partial download "+partFile);
+        }
+        return false;
+    }
+    
+    /**
+     * return the total length from the Content-Range header, like "bytes 1000-1999/2000".
+     * @param contentRange the header value, or null.
+     * @param position the position where the range starts
+     * @param contentLength the length of the partial content, or -1.
+     * @return the total length, or -1 if it is not known.
+     */
+    private static long getRangeTotal( String contentRange, long position, long contentLength ) {
+        if ( contentRange!=null ) {
+            int i= contentRange.lastIndexOf('/');
+            if ( i>-1 && !contentRange.endsWith("*") ) {
+                return Long.parseLong( contentRange.substring(i+1).trim() );
+            }
+        }
+        return contentLength>-1 ? position+contentLength : -1;
+    }
+    
+    /**
+     * return the number of nanoseconds since 1970-01-01T00:00Z for the seven-component time, 
+     * ignoring leap seconds.  This is useful for comparing and sorting times.
+     * @param time seven-component time [ Y, m, d, H, M, S, N ]
+     * @return the number of nanoseconds since 1970-01-01T00:00Z.
+     */
+    public static long toNanosecondsSince1970( int[] time ) {
+        long days= TimeUtil.julianDay( time[0], time[1], time[2] ) - 2440588;
+        long seconds= days * 86400 + time[3] * 3600L + time[4] * 60L + time[5];
+        return seconds * 1000000000L + time[6];
+    }
+    
+    /**
+     * return the seven-component time for the number of nanoseconds since 1970-01-01T00:00Z.
+     * This is the inverse of toNanosecondsSince1970.
+     * @param nanos the number of nanoseconds since 1970-01-01T00:00Z, ignoring leap seconds.
+     * @return seven-component time [ Y, m, d, H, M, S, N ]
+     */
+    public static int[] fromNanosecondsSince1970( long nanos ) {
+        long seconds= Math.floorDiv( nanos, 1000000000L );
+        int n= (int)Math.floorMod( nanos, 1000000000L );
+        long days= Math.floorDiv( seconds, 86400L );
+        int secondOfDay= (int)Math.floorMod( seconds, 86400L );
+        int[] ymd= TimeUtil.fromJulianDay( (int)( days + 2440588 ) );
+        return new int[] { ymd[0], ymd[1], ymd[2], 
+            secondOfDay / 3600, ( secondOfDay / 60 ) % 60, secondOfDay % 60, n };
+    }
+    
     /**
      * return version tag to ensure that new version is seen by the server
      */